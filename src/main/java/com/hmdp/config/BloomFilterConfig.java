@@ -0,0 +1,29 @@
+package com.hmdp.config;
+
+import com.hmdp.service.IBloomFilter;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.RedisConstants;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+@Configuration
+public class BloomFilterConfig {
+
+    private static final double BLOOM_FPP = 0.01;
+
+    @Bean
+    public IBloomFilter shopBloomFilter(StringRedisTemplate stringRedisTemplate) {
+        return new RedisBloomFilter(stringRedisTemplate, RedisConstants.BLOOM_SHOP_KEY, 1000000, BLOOM_FPP);
+    }
+
+    @Bean
+    public IBloomFilter userBloomFilter(StringRedisTemplate stringRedisTemplate) {
+        return new RedisBloomFilter(stringRedisTemplate, RedisConstants.BLOOM_USER_KEY, 10000000, BLOOM_FPP);
+    }
+
+    @Bean
+    public IBloomFilter seckillVoucherBloomFilter(StringRedisTemplate stringRedisTemplate) {
+        return new RedisBloomFilter(stringRedisTemplate, RedisConstants.BLOOM_SECKILL_VOUCHER_KEY, 100000, BLOOM_FPP);
+    }
+}
@@ -1,13 +1,17 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
+import com.hmdp.utils.CacheMetrics;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Set;
 
 @Configuration
 public class MvcConfig implements WebMvcConfigurer {
@@ -15,9 +19,15 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Value("${hmdp.admin.user-ids:}")
+    private Set<Long> adminIds;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**");
+        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate, cacheMetrics)).addPathPatterns("/**");
         
         registry.addInterceptor(new LoginInterceptor())
                 .excludePathPatterns(
@@ -29,5 +39,7 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/voucher/**"
                 );
 
+        registry.addInterceptor(new AdminInterceptor(adminIds)).addPathPatterns("/admin/**");
+
     }
 }
@@ -0,0 +1,44 @@
+package com.hmdp.config;
+
+import com.hmdp.service.ISeckillPreheatService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SoldOutRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+
+@Configuration
+public class RedisListenerConfig {
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       CacheClient cacheClient,
+                                                                       IShopTypeService shopTypeService,
+                                                                       SoldOutRegistry soldOutRegistry,
+                                                                       ISeckillPreheatService seckillPreheatService,
+                                                                       OrderStatusTracker orderStatusTracker) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        //缓存失效广播,清除各节点本地缓存
+        container.addMessageListener(cacheClient, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+        //店铺类型列表变更,各节点按版本号替换本地快照
+        container.addMessageListener((message, pattern) -> shopTypeService.onTypeListChanged(
+                Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(RedisConstants.CACHE_SHOP_TYPE_CHANNEL));
+        //优惠券售罄广播
+        container.addMessageListener(soldOutRegistry, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+        //秒杀预热,各节点加载优惠券缓存
+        container.addMessageListener((message, pattern) -> seckillPreheatService.onPreheat(
+                Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(RedisConstants.SECKILL_PREHEAT_CHANNEL));
+        //订单状态变化,返回等待结果的长轮询请求
+        container.addMessageListener(orderStatusTracker, new ChannelTopic(RedisConstants.ORDER_STATUS_CHANNEL));
+        return container;
+    }
+}
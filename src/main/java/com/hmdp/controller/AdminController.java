@@ -0,0 +1,126 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillLimitDTO;
+import com.hmdp.entity.ShopType;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.ICacheWarmupService;
+import com.hmdp.service.ISeckillReconcileService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillRateLimiter;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 运维操作
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+    @Resource
+    private ICacheWarmupService cacheWarmupService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillReconcileService seckillReconcileService;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    /**
+     * 触发缓存预热
+     */
+    @PostMapping("/warmup")
+    public Result warmup() {
+        return cacheWarmupService.warmup();
+    }
+
+    /**
+     * 查询预热进度
+     */
+    @GetMapping("/warmup")
+    public Result warmupStatus() {
+        return cacheWarmupService.status();
+    }
+
+    /**
+     * 新增店铺类型
+     */
+    @PostMapping("/shop-type")
+    public Result saveShopType(@RequestBody ShopType shopType) {
+        return shopTypeService.saveType(shopType);
+    }
+
+    /**
+     * 修改店铺类型
+     */
+    @PutMapping("/shop-type")
+    public Result updateShopType(@RequestBody ShopType shopType) {
+        return shopTypeService.updateType(shopType);
+    }
+
+    /**
+     * 修改秒杀券的时间
+     * @param voucher 优惠券信息，包含id和新的开始、结束时间
+     */
+    @PutMapping("/voucher/seckill")
+    public Result updateSeckillVoucher(@RequestBody Voucher voucher) {
+        return voucherService.updateSeckillVoucher(voucher);
+    }
+
+    /**
+     * 修改秒杀限流,不传优惠券id时修改默认值
+     */
+    @PutMapping("/seckill-limit")
+    public Result updateSeckillLimit(@RequestBody SeckillLimitDTO limit) {
+        seckillRateLimiter.updateLimit(limit);
+        return Result.ok();
+    }
+
+    /**
+     * 查询订单死信队列
+     */
+    @GetMapping("/seckill-order/dlq")
+    public Result queryDeadLetters(@RequestParam(value = "count", defaultValue = "20") Integer count) {
+        return voucherOrderService.queryDeadLetters(count);
+    }
+
+    /**
+     * 重新投递订单死信队列中最早的消息
+     */
+    @PostMapping("/seckill-order/dlq/replay")
+    public Result replayDeadLetters(@RequestParam(value = "count", defaultValue = "100") Integer count) {
+        return voucherOrderService.replayDeadLetters(count);
+    }
+
+    /**
+     * 按数据库对账redis中的秒杀库存和一人一单集合
+     * @param voucherId 优惠券id,不传时对账所有未结束的秒杀
+     * @param apply 是否修复,默认只报告偏差
+     */
+    @PostMapping("/seckill-reconcile")
+    public Result reconcileSeckill(@RequestParam(value = "voucherId", required = false) Long voucherId,
+                                   @RequestParam(value = "apply", defaultValue = "false") Boolean apply) {
+        return seckillReconcileService.reconcile(voucherId, apply);
+    }
+}
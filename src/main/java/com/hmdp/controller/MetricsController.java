@@ -0,0 +1,68 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.SeckillBackpressure;
+import com.hmdp.utils.SeckillRateLimiter;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 运行指标
+ * </p>
+ */
+@RestController
+@RequestMapping("/metrics")
+public class MetricsController {
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
+    @Resource
+    private SeckillBackpressure seckillBackpressure;
+
+    /**
+     * 当前访问最频繁的key
+     * @return key及估算访问次数
+     */
+    @GetMapping("/hot-keys")
+    public Result hotKeys() {
+        return Result.ok(hotKeyDetector.topKeys());
+    }
+
+    /**
+     * 按key前缀统计的缓存命中率、查库次数和耗时分位数
+     * @return key前缀及统计数据
+     */
+    @GetMapping("/cache")
+    public Result cache() {
+        return Result.ok(cacheMetrics.snapshot());
+    }
+
+    /**
+     * 本节点每张优惠券的秒杀限流放行和拒绝次数
+     */
+    @GetMapping("/seckill-limit")
+    public Result seckillLimit() {
+        return Result.ok(seckillRateLimiter.snapshot());
+    }
+
+    /**
+     * 订单积压量、消费速率和当前的秒杀准入模式
+     */
+    @GetMapping("/seckill-backpressure")
+    public Result seckillBackpressure() {
+        return Result.ok(seckillBackpressure.snapshot());
+    }
+}
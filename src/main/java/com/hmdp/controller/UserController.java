@@ -7,6 +7,7 @@ import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.entity.UserInfo;
+import com.hmdp.service.IBloomFilter;
 import com.hmdp.service.IUserInfoService;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.UserHolder;
@@ -35,6 +36,9 @@ public class UserController {
     @Resource
     private IUserInfoService userInfoService;
 
+    @Resource
+    private IBloomFilter userBloomFilter;
+
     /**
      * 发送手机验证码
      */
@@ -89,6 +93,9 @@ public class UserController {
 
     @GetMapping("/{id}")
     public Result queryUserById(@PathVariable("id") Long userId) {
+        if (!userBloomFilter.mightContain(userId)) {
+            return Result.ok();
+        }
         User user = userService.getById(userId);
         if (user == null) {
             return Result.ok();
@@ -4,10 +4,16 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.UserHolder;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -26,8 +32,29 @@ public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
 
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询当前用户的秒杀订单状态
+     * @param orderId 秒杀返回的订单id
+     * @param wait 最多等待的秒数,大于0时订单排队中会等到有结果或超时再返回
+     * @return 订单状态
+     */
+    @GetMapping("/{id}/status")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "wait", defaultValue = "0") Long wait) {
+        Long userId = UserHolder.getUser().getId();
+        if (wait <= 0) {
+            DeferredResult<Result> result = new DeferredResult<>();
+            result.setResult(Result.ok(orderStatusTracker.query(orderId, userId)));
+            return result;
+        }
+        return orderStatusTracker.await(orderId, userId, Math.min(wait, SystemConstants.ORDER_STATUS_MAX_WAIT) * 1000);
+    }
 }
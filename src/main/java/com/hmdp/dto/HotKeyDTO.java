@@ -0,0 +1,20 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HotKeyDTO {
+    private String key;
+    /**
+     * 最近一段时间的估算访问次数
+     */
+    private Integer count;
+    /**
+     * 是否已经复制到本地
+     */
+    private Boolean hot;
+}
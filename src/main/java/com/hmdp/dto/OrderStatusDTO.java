@@ -0,0 +1,20 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OrderStatusDTO {
+    private Long orderId;
+    /**
+     * queued:排队中 created:已创建 failed:失败 unknown:不存在或已过期
+     */
+    private String status;
+    /**
+     * 失败原因
+     */
+    private String reason;
+}
@@ -0,0 +1,34 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class ReconcileReport {
+    private Long voucherId;
+    /**
+     * 数据库中的库存和订单数
+     */
+    private Integer dbStock;
+    private Long dbOrders;
+    /**
+     * stream中尚未落库的订单数
+     */
+    private Long pendingOrders;
+    /**
+     * 应有的redis库存 = 数据库库存 - 未落库订单数,以及对账前redis中的库存
+     */
+    private Long expectedStock;
+    private Long redisStock;
+    /**
+     * 应有的已下单用户数,redis中缺少的用户数,redis中多出的用户数
+     */
+    private Long buyers;
+    private Long missingBuyers;
+    private Long extraBuyers;
+    /**
+     * 是否有偏差,是否已修复
+     */
+    private Boolean drift;
+    private Boolean applied;
+    private Long elapsedMillis;
+}
@@ -14,6 +14,14 @@ public class Result {
     private String errorMsg;
     private Object data;
     private Long total;
+    /**
+     * 成功时给用户的提示,如订单积压时的排队提示
+     */
+    private String notice;
+
+    public Result(Boolean success, String errorMsg, Object data, Long total) {
+        this(success, errorMsg, data, total, null);
+    }
 
     public static Result ok(){
         return new Result(true, null, null, null);
@@ -24,6 +32,9 @@ public class Result {
     public static Result ok(List<?> data, Long total){
         return new Result(true, null, data, total);
     }
+    public static Result ok(Object data, String notice){
+        return new Result(true, null, data, null, notice);
+    }
     public static Result fail(String errorMsg){
         return new Result(false, errorMsg, null, null);
     }
@@ -0,0 +1,19 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class SeckillLimitDTO {
+    /**
+     * 优惠券id,为空时修改所有优惠券的默认限流
+     */
+    private Long voucherId;
+    /**
+     * 每秒放行的请求数,不大于0表示不限流
+     */
+    private Long rate;
+    /**
+     * 令牌桶容量,允许的突发请求数
+     */
+    private Long burst;
+}
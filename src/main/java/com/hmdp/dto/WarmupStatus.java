@@ -0,0 +1,24 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.time.LocalDateTime;
+
+@Data
+public class WarmupStatus {
+    private Boolean running;
+    /**
+     * 当前阶段:geo、shop、shopType、done、failed
+     */
+    private String stage;
+    private Long shops;
+    private Integer geoTypes;
+    private Integer cachedShops;
+    private LocalDateTime startTime;
+    private Long elapsedMillis;
+    /**
+     * 每秒处理的店铺数
+     */
+    private Long shopsPerSecond;
+    private String error;
+}
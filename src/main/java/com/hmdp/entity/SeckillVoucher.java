@@ -37,6 +37,11 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 库存分片数,大于1时redis中的库存拆分为多个桶
+     */
+    private Integer stockShards;
+
     /**
      * 创建时间
      */
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 批量插入订单,违反主键或(用户,优惠券)唯一索引的行被跳过,其他错误照常抛出
+     * <p>
+     * 返回值受jdbc的useAffectedRows影响,需要查询哪些订单实际写入
+     */
+    int insertSkipDuplicateBatch(@Param("orders") List<VoucherOrder> orders);
 }
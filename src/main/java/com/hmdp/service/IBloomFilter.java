@@ -0,0 +1,17 @@
+package com.hmdp.service;
+
+import java.util.List;
+import java.util.function.Function;
+
+public interface IBloomFilter {
+    /**
+     * 首次使用时根据数据库id构建过滤器
+     *
+     * @param pageLoader 根据上一页最后的id查询下一页id,返回空表示结束
+     */
+    void init(Function<Long, List<Long>> pageLoader);
+
+    void add(Object id);
+
+    boolean mightContain(Object id);
+}
@@ -0,0 +1,26 @@
+package com.hmdp.service;
+
+import com.hmdp.utils.RedisData;
+
+/**
+ * 缓存数据的编解码方式,CacheClient按key前缀选择
+ */
+public interface ICacheCodec {
+
+    byte[] encode(Object value);
+
+    /**
+     * 解码缓存数据,数据与type当前的字段结构不一致时返回null,调用方按未命中处理
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 编码带逻辑过期时间的数据
+     */
+    byte[] encodeLogical(RedisData redisData);
+
+    /**
+     * 解码带逻辑过期时间的数据,返回的RedisData中data已经是type类型,数据无法按type解析时返回null
+     */
+    <T> RedisData decodeLogical(byte[] bytes, Class<T> type);
+}
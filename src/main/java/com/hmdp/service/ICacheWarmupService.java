@@ -0,0 +1,18 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.Result;
+
+/**
+ * <p>
+ * 缓存预热服务类
+ * </p>
+ */
+public interface ICacheWarmupService {
+
+    /**
+     * 后台执行预热,已经在执行时直接返回
+     */
+    Result warmup();
+
+    Result status();
+}
@@ -0,0 +1,19 @@
+package com.hmdp.service;
+
+/**
+ * <p>
+ * 秒杀预热服务类
+ * </p>
+ */
+public interface ISeckillPreheatService {
+
+    /**
+     * 扫描即将开始和已经结束的秒杀,预热或清理redis中的秒杀数据
+     */
+    void scan();
+
+    /**
+     * 收到预热通知,加载本节点的优惠券缓存
+     */
+    void onPreheat(Long voucherId);
+}
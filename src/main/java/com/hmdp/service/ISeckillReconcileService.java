@@ -0,0 +1,20 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.Result;
+
+/**
+ * <p>
+ * 秒杀对账服务类
+ * </p>
+ */
+public interface ISeckillReconcileService {
+
+    /**
+     * 按数据库重新计算redis中的秒杀库存和一人一单集合
+     *
+     * @param voucherId 优惠券id,为空时对账所有未结束的秒杀
+     * @param apply     是否用计算结果覆盖redis,否则只报告偏差
+     * @return 每张优惠券的对账结果
+     */
+    Result reconcile(Long voucherId, boolean apply);
+}
@@ -13,4 +13,23 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    /**
+     * 查询秒杀券信息,优先读本地缓存
+     */
+    SeckillVoucher queryVoucherMeta(Long voucherId);
+
+    /**
+     * 秒杀券新增或修改后刷新缓存和秒杀脚本使用的时间窗口
+     */
+    void refreshVoucherMeta(SeckillVoucher seckillVoucher);
+
+    /**
+     * 把库存写入redis,stockShards大于1时拆分到seckill:stock:{id}:{桶}
+     */
+    void loadStock(SeckillVoucher seckillVoucher);
+
+    /**
+     * 删除redis中的库存,包括各个桶
+     */
+    void removeStock(SeckillVoucher seckillVoucher);
 }
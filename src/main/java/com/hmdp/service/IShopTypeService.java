@@ -15,4 +15,18 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IShopTypeService extends IService<ShopType> {
 
     Result queryTypeList();
+
+    /**
+     * 提前序列化好的类型列表响应体
+     */
+    byte[] queryTypeListBody();
+
+    Result saveType(ShopType shopType);
+
+    Result updateType(ShopType shopType);
+
+    /**
+     * 收到类型列表变更通知,本地快照版本落后时重新加载
+     */
+    void onTypeListChanged(long version);
 }
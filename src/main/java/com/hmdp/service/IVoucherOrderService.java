@@ -4,6 +4,9 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  * 服务类
@@ -16,4 +19,28 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
     Result createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 批量创建订单:按优惠券合并扣减库存,批量插入订单,在一个事务中完成
+     *
+     * @return 创建失败的订单id及原因
+     */
+    Map<Long, String> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 查询死信队列中最早的消息
+     */
+    Result queryDeadLetters(int count);
+
+    /**
+     * 把死信队列中最早的消息重新投递到订单stream
+     *
+     * @return 重新投递的消息数量
+     */
+    Result replayDeadLetters(int count);
+
+    /**
+     * 订单消息的所有分区
+     */
+    List<String> orderStreams();
 }
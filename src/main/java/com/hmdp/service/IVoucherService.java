@@ -17,4 +17,9 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    /**
+     * 修改秒杀券的开始和结束时间
+     */
+    Result updateSeckillVoucher(Voucher voucher);
 }
@@ -15,6 +15,8 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheMetrics;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
@@ -24,6 +26,7 @@ import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -43,6 +46,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private CacheMetrics cacheMetrics;
 
     @Override
     public Result queryHotBlog(Integer current) {
@@ -82,17 +89,35 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         Long userId = user.getId();
 //        2. 判断当前登录用户是否已经点赞
         String key = RedisConstants.BLOG_LIKED_KEY + blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
+        Double score = likedScore(key, userId);
         blog.setIsLike(score != null);
     }
 
+    /**
+     * 查询用户点赞的时间,没有点赞时返回null
+     */
+    private Double likedScore(String key, Long userId) {
+        long begin = System.nanoTime();
+        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
+        recordLikedRead(begin);
+        return score;
+    }
+
+    /**
+     * 点赞集合只保存在redis中,没有查库的回退,每次读取都按命中统计,主要用于观察耗时
+     */
+    private void recordLikedRead(long begin) {
+        cacheMetrics.redisLatency(RedisConstants.BLOG_LIKED_KEY, System.nanoTime() - begin);
+        cacheMetrics.hit(RedisConstants.BLOG_LIKED_KEY);
+    }
+
     @Override
     public Result likeBlog(Long id) {
 //        1.获取登录用户
         Long userId = UserHolder.getUser().getId();
 //        2. 判断当前登录用户是否已经点赞
         String key = RedisConstants.BLOG_LIKED_KEY + id;
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
+        Double score = likedScore(key, userId);
         //        3. 如果未点赞，可以点赞
         if (score == null) {
             //        3.1 数据库点赞数+1
@@ -101,6 +126,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             if (isSuccess) {
                 //        3.2 保存到redis的set集合
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
             }
         } else {
 //        4. 如果已点赞，取消点赞
@@ -109,6 +135,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             boolean isSuccess = update().setSql("liked = liked - 1").eq("id", id).update();
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                cacheClient.delete(RedisConstants.CACHE_BLOG_KEY + id);
             }
         }
 
@@ -119,19 +146,19 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogLikes(Long id) {
         //查询top5的点赞用户
         String key = RedisConstants.BLOG_LIKED_KEY + id;
+        long begin = System.nanoTime();
         Set<String> top5 = stringRedisTemplate.opsForZSet().range(key, 0, 4);
+        recordLikedRead(begin);
         if (top5 == null || top5.isEmpty()) {
             return Result.ok(Collections.emptyList());
         }
         //解析id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idstr = StrUtil.join(",", ids);
-        //根据id查询用户
-        List<UserDTO> users = userService.query()
-                .in("id", ids).last("ORDER BY FIELD(id," + idstr + ")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        //根据id查询用户,优先走缓存
+        List<UserDTO> users = cacheClient.multiGet(RedisConstants.CACHE_USER_KEY, ids, UserDTO.class,
+                idList -> userService.listByIds(idList).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                RedisConstants.CACHE_USER_TTL, TimeUnit.MINUTES);
 
         return Result.ok(users);
     }
@@ -184,9 +211,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 os = 1;
             }
         }
-        //4.根据id查询blog
-        String idStr = StrUtil.join(",", ids);
-        List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        //4.根据id查询blog,优先走缓存
+        List<Blog> blogs = cacheClient.multiGet(RedisConstants.CACHE_BLOG_KEY, ids, Blog.class,
+                idList -> listByIds(idList).stream().collect(Collectors.toMap(Blog::getId, blog -> blog)),
+                RedisConstants.CACHE_BLOG_TTL, TimeUnit.MINUTES);
 
         for (Blog blog : blogs) {
             //查询用户
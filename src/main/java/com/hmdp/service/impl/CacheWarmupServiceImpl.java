@@ -0,0 +1,197 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.WarmupStatus;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.service.ICacheWarmupService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * 缓存预热:重建店铺geo索引,缓存销量最高的店铺和店铺类型
+ * </p>
+ */
+@Slf4j
+@Service
+public class CacheWarmupServiceImpl implements ICacheWarmupService {
+
+    private static final String GEO_BUILDING_SUFFIX = ":warmup";
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.warmup.enabled:true}")
+    private boolean enabled;
+
+    @Value("${hmdp.warmup.top-shops:100}")
+    private int topShops;
+
+    private static final ExecutorService WARMUP_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile WarmupStatus status = new WarmupStatus();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (enabled) {
+            warmup();
+        }
+    }
+
+    @Override
+    public Result warmup() {
+        if (!running.compareAndSet(false, true)) {
+            return Result.fail("预热正在进行中");
+        }
+        WARMUP_EXECUTOR.submit(() -> {
+            try {
+                //多个节点同时启动时只由一个节点预热,锁的值是本次预热的标识,预热超过锁有效期时不会误删其他节点的锁
+                String token = UUID.randomUUID().toString(true);
+                Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(
+                        RedisConstants.LOCK_WARMUP_KEY, token, RedisConstants.LOCK_WARMUP_TTL, TimeUnit.MINUTES);
+                if (!BooleanUtil.isTrue(locked)) {
+                    log.info("其他节点正在预热,跳过");
+                    return;
+                }
+                try {
+                    doWarmup();
+                } finally {
+                    stringRedisTemplate.execute(SimpleRedisLock.UNLOCK_SCRIPT,
+                            Collections.singletonList(RedisConstants.LOCK_WARMUP_KEY), token);
+                }
+            } catch (Exception e) {
+                log.error("缓存预热失败", e);
+                status.setStage("failed");
+                status.setError(e.getMessage());
+            } finally {
+                status.setRunning(false);
+                running.set(false);
+            }
+        });
+        return Result.ok();
+    }
+
+    @Override
+    public Result status() {
+        return Result.ok(status);
+    }
+
+    private void doWarmup() {
+        WarmupStatus current = new WarmupStatus();
+        current.setRunning(true);
+        current.setStartTime(LocalDateTime.now());
+        current.setShops(0L);
+        status = current;
+        long begin = System.currentTimeMillis();
+
+        //1.分页读取店铺,按类型批量写入临时geo key
+        current.setStage("geo");
+        for (ShopType shopType : shopTypeService.list()) {
+            //清理上次失败残留的临时key
+            stringRedisTemplate.delete(RedisConstants.SHOP_GEO_KEY + shopType.getId() + GEO_BUILDING_SUFFIX);
+        }
+        Set<Long> typeIds = new HashSet<>();
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = shopService.query().gt("id", lastId).orderByAsc("id")
+                    .last("limit " + SystemConstants.WARMUP_PAGE_SIZE).list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            Map<Long, List<RedisGeoCommands.GeoLocation<byte[]>>> locations = new HashMap<>();
+            for (Shop shop : shops) {
+                if (shop.getX() == null || shop.getY() == null) {
+                    continue;
+                }
+                locations.computeIfAbsent(shop.getTypeId(), typeId -> new ArrayList<>()).add(new RedisGeoCommands.GeoLocation<>(
+                        shop.getId().toString().getBytes(StandardCharsets.UTF_8), new Point(shop.getX(), shop.getY())));
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Map.Entry<Long, List<RedisGeoCommands.GeoLocation<byte[]>>> entry : locations.entrySet()) {
+                    connection.geoCommands().geoAdd(geoBuildingKey(entry.getKey()), entry.getValue());
+                }
+                return null;
+            });
+            typeIds.addAll(locations.keySet());
+            lastId = shops.get(shops.size() - 1).getId();
+            updateProgress(current, begin, shops.size());
+        }
+        //2.临时key替换正式key,查询不会看到写了一半的数据
+        for (Long typeId : typeIds) {
+            stringRedisTemplate.rename(RedisConstants.SHOP_GEO_KEY + typeId + GEO_BUILDING_SUFFIX, RedisConstants.SHOP_GEO_KEY + typeId);
+        }
+        current.setGeoTypes(typeIds.size());
+        log.info("店铺geo索引预热完成,店铺数:{},类型数:{},耗时{}ms", current.getShops(), typeIds.size(), System.currentTimeMillis() - begin);
+
+        //3.缓存销量最高的店铺
+        current.setStage("shop");
+        List<Shop> hotShops = shopService.query().orderByDesc("sold").last("limit " + topShops).list();
+        Map<String, Shop> values = new HashMap<>(hotShops.size());
+        for (Shop shop : hotShops) {
+            values.put(RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop);
+        }
+        cacheClient.multiSet(values, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        current.setCachedShops(hotShops.size());
+
+        //4.店铺类型
+        current.setStage("shopType");
+        shopTypeService.queryTypeList();
+
+        current.setStage("done");
+        current.setElapsedMillis(System.currentTimeMillis() - begin);
+        log.info("缓存预热完成,耗时{}ms", current.getElapsedMillis());
+    }
+
+    private void updateProgress(WarmupStatus current, long begin, int count) {
+        current.setShops(current.getShops() + count);
+        long elapsed = Math.max(1, System.currentTimeMillis() - begin);
+        current.setElapsedMillis(elapsed);
+        current.setShopsPerSecond(current.getShops() * 1000 / elapsed);
+        log.debug("预热进度:已处理店铺{},{}个/秒", current.getShops(), current.getShopsPerSecond());
+    }
+
+    private static byte[] geoBuildingKey(Long typeId) {
+        return (RedisConstants.SHOP_GEO_KEY + typeId + GEO_BUILDING_SUFFIX).getBytes(StandardCharsets.UTF_8);
+    }
+}
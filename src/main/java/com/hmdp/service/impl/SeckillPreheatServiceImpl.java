@@ -0,0 +1,146 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.util.BooleanUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillPreheatService;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SoldOutRegistry;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * <p>
+ * 秒杀预热:开始前一段时间把库存、一人一单集合和时间窗口写入redis,并通知所有节点加载优惠券缓存;
+ * 结束一段时间后清理库存和一人一单集合
+ * </p>
+ * 所有节点都会扫描,通过redis中的预热标记保证每张优惠券只由一个节点预热和清理
+ */
+@Slf4j
+@Service
+public class SeckillPreheatServiceImpl implements ISeckillPreheatService {
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    /**
+     * 开始前多少秒预热
+     */
+    @Value("${hmdp.seckill.preheat.lead:300}")
+    private long lead;
+
+    /**
+     * 结束后多少秒清理
+     */
+    @Value("${hmdp.seckill.preheat.cleanup-delay:60}")
+    private long cleanupDelay;
+
+    @Override
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preheat.interval:10000}")
+    public void scan() {
+        LocalDateTime now = LocalDateTime.now();
+        try {
+            //1.即将开始或正在进行、还没有预热的秒杀
+            List<SeckillVoucher> upcoming = seckillVoucherService.query()
+                    .le("begin_time", now.plusSeconds(lead))
+                    .gt("end_time", now)
+                    .list();
+            for (SeckillVoucher voucher : upcoming) {
+                preheat(voucher);
+            }
+            //2.已经结束、还没有清理的秒杀,只看最近一天结束的
+            List<SeckillVoucher> finished = seckillVoucherService.query()
+                    .le("end_time", now.minusSeconds(cleanupDelay))
+                    .gt("end_time", now.minusDays(1))
+                    .list();
+            for (SeckillVoucher voucher : finished) {
+                cleanup(voucher);
+            }
+        } catch (Exception e) {
+            log.error("秒杀预热扫描异常", e);
+        }
+    }
+
+    @Override
+    public void onPreheat(Long voucherId) {
+        soldOutRegistry.clear(voucherId);
+        seckillVoucherService.queryVoucherMeta(voucherId);
+    }
+
+    private void preheat(SeckillVoucher voucher) {
+        //1.设置预热标记,已经预热过的跳过,标记保留到结束后一天
+        String markKey = RedisConstants.SECKILL_PREHEAT_KEY + voucher.getVoucherId();
+        Duration ttl = Duration.between(LocalDateTime.now(), voucher.getEndTime()).plusDays(1);
+        if (!BooleanUtil.isTrue(stringRedisTemplate.opsForValue().setIfAbsent(markKey, "1", ttl))) {
+            return;
+        }
+        try {
+            //2.还没开始时重建库存和一人一单集合,数据库中的库存已经扣除了创建好的订单;
+            //已经开始的秒杀可能还有未落库的订单,不能按数据库覆盖
+            if (voucher.getBeginTime().isAfter(LocalDateTime.now())) {
+                seckillVoucherService.loadStock(voucher);
+                rebuildOrderUsers(voucher.getVoucherId());
+            }
+            //3.时间窗口,同时清除各节点的旧缓存
+            seckillVoucherService.refreshVoucherMeta(voucher);
+            //4.通知所有节点加载优惠券缓存、清除售罄标记
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_PREHEAT_CHANNEL, voucher.getVoucherId().toString());
+            log.info("秒杀预热完成:{},库存:{}", voucher.getVoucherId(), voucher.getStock());
+        } catch (Exception e) {
+            //预热失败,删除标记等待下次扫描重试
+            stringRedisTemplate.delete(markKey);
+            log.error("秒杀预热失败:{}", voucher.getVoucherId(), e);
+        }
+    }
+
+    private void rebuildOrderUsers(Long voucherId) {
+        String orderKey = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        stringRedisTemplate.delete(orderKey);
+        long lastId = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + SystemConstants.WARMUP_PAGE_SIZE)
+                    .list();
+            if (orders.isEmpty()) {
+                return;
+            }
+            stringRedisTemplate.opsForSet().add(orderKey, orders.stream()
+                    .map(order -> order.getUserId().toString()).toArray(String[]::new));
+            lastId = orders.get(orders.size() - 1).getId();
+        }
+    }
+
+    private void cleanup(SeckillVoucher voucher) {
+        //只有删除标记成功的节点执行清理
+        if (!BooleanUtil.isTrue(stringRedisTemplate.delete(RedisConstants.SECKILL_PREHEAT_KEY + voucher.getVoucherId()))) {
+            return;
+        }
+        seckillVoucherService.removeStock(voucher);
+        stringRedisTemplate.delete(RedisConstants.SECKILL_ORDER_KEY + voucher.getVoucherId());
+        log.info("秒杀数据清理完成:{}", voucher.getVoucherId());
+    }
+}
@@ -0,0 +1,381 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.NumberUtil;
+import com.hmdp.dto.ReconcileReport;
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillReconcileService;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ * 秒杀对账:按数据库重建redis中的库存和一人一单集合
+ * </p>
+ * 先记录消费者组的确认位置,扫描订单stream记录还没有处理完的订单,再在同一个事务快照中游标扫描库存和订单,
+ * 用户分批pipeline写入临时集合,最后由脚本补上扫描之后新写入stream的订单,比较偏差并原子替换
+ * <p>
+ * 已经确认的消息(落库、因重复或库存不足被拒绝、移入死信队列)不算未落库订单;
+ * stream的截止位置在事务快照建立之后读取,截止位置之后的订单一定不在快照中
+ */
+@Slf4j
+@Service
+public class SeckillReconcileServiceImpl implements ISeckillReconcileService {
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> RECONCILE_SCRIPT;
+
+    static {
+        RECONCILE_SCRIPT = new DefaultRedisScript<>();
+        RECONCILE_SCRIPT.setLocation(new ClassPathResource("seckill_reconcile.lua"));
+        RECONCILE_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${hmdp.seckill.reconcile.on-startup:false}")
+    private boolean onStartup;
+
+    /**
+     * 只读、可重复读的事务,库存和订单来自同一个快照
+     */
+    private TransactionTemplate snapshotTemplate;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    @PostConstruct
+    private void init() {
+        snapshotTemplate = new TransactionTemplate(transactionManager);
+        snapshotTemplate.setReadOnly(true);
+        snapshotTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (onStartup) {
+            Result result = reconcile(null, true);
+            log.info("启动对账完成:{}", BooleanUtil.isTrue(result.getSuccess()) ? "ok" : result.getErrorMsg());
+        }
+    }
+
+    @Override
+    public Result reconcile(Long voucherId, boolean apply) {
+        if (!running.compareAndSet(false, true)) {
+            return Result.fail("对账正在进行中");
+        }
+        try {
+            //多个节点同时对账时只由一个节点执行,锁过期后不会误删其他节点的锁
+            String token = UUID.randomUUID().toString(true);
+            Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(
+                    RedisConstants.LOCK_RECONCILE_KEY, token, RedisConstants.LOCK_RECONCILE_TTL, TimeUnit.MINUTES);
+            if (!BooleanUtil.isTrue(locked)) {
+                return Result.fail("其他节点正在对账");
+            }
+            try {
+                //1.先记录消费者组的确认位置,再扫描stream,记录每个分区扫描到的位置
+                StreamScan scan = new StreamScan();
+                captureGroups(scan);
+                scanStreams(scan);
+                //2.逐张优惠券对账
+                List<ReconcileReport> reports = new ArrayList<>();
+                if (voucherId != null) {
+                    ReconcileReport report = reconcileVoucher(voucherId, scan, apply);
+                    if (report != null) {
+                        reports.add(report);
+                    }
+                    return Result.ok(reports);
+                }
+                long cursor = 0;
+                while (true) {
+                    List<SeckillVoucher> page = seckillVoucherService.query()
+                            .select("voucher_id")
+                            .gt("end_time", LocalDateTime.now())
+                            .gt("voucher_id", cursor)
+                            .orderByAsc("voucher_id")
+                            .last("limit " + SystemConstants.RECONCILE_PAGE_SIZE)
+                            .list();
+                    for (SeckillVoucher voucher : page) {
+                        ReconcileReport report = reconcileVoucher(voucher.getVoucherId(), scan, apply);
+                        if (report != null) {
+                            reports.add(report);
+                        }
+                    }
+                    if (page.size() < SystemConstants.RECONCILE_PAGE_SIZE) {
+                        break;
+                    }
+                    cursor = page.get(page.size() - 1).getVoucherId();
+                }
+                return Result.ok(reports);
+            } finally {
+                stringRedisTemplate.execute(SimpleRedisLock.UNLOCK_SCRIPT,
+                        Collections.singletonList(RedisConstants.LOCK_RECONCILE_KEY), token);
+            }
+        } catch (Exception e) {
+            log.error("秒杀对账失败", e);
+            return Result.fail("对账失败:" + e.getMessage());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * 记录每个分区的pending list和最后投递的位置,不在pending list中且不晚于最后投递位置的消息已经处理完
+     */
+    private void captureGroups(StreamScan scan) {
+        for (String stream : voucherOrderService.orderStreams()) {
+            StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(stream);
+            for (int i = 0; i < groups.size(); i++) {
+                StreamInfo.XInfoGroup group = groups.get(i);
+                if (RedisConstants.SECKILL_ORDER_GROUP.equals(group.groupName())) {
+                    scan.lastDelivered.put(stream, RecordId.of(group.lastDeliveredId()));
+                }
+            }
+            Set<String> pel = new HashSet<>();
+            Range<String> range = Range.unbounded();
+            while (true) {
+                PendingMessages pending = stringRedisTemplate.opsForStream().pending(stream,
+                        RedisConstants.SECKILL_ORDER_GROUP, range, SystemConstants.RECONCILE_PAGE_SIZE);
+                if (pending.isEmpty()) {
+                    break;
+                }
+                String lastId = null;
+                for (PendingMessage message : pending) {
+                    lastId = message.getIdAsString();
+                    pel.add(lastId);
+                }
+                if (pending.size() < SystemConstants.RECONCILE_PAGE_SIZE) {
+                    break;
+                }
+                range = Range.rightUnbounded(Range.Bound.exclusive(lastId));
+            }
+            scan.pel.put(stream, pel);
+        }
+    }
+
+    /**
+     * 从上次扫描到的位置继续分页扫描所有订单stream,按优惠券分组记录还没有处理完的订单
+     */
+    private void scanStreams(StreamScan scan) {
+        for (String stream : voucherOrderService.orderStreams()) {
+            String lastId = scan.lastIds.get(stream);
+            Range<String> range = lastId == null ? Range.unbounded() : Range.rightUnbounded(Range.Bound.exclusive(lastId));
+            while (true) {
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(stream, range,
+                        RedisZSetCommands.Limit.limit().count(SystemConstants.RECONCILE_PAGE_SIZE));
+                if (records == null || records.isEmpty()) {
+                    break;
+                }
+                for (MapRecord<String, Object, Object> record : records) {
+                    if (scan.processed(stream, record.getId())) {
+                        continue;
+                    }
+                    Map<Object, Object> value = record.getValue();
+                    Object voucherId = value.get("voucherId");
+                    Object orderId = value.get("orderId");
+                    Object userId = value.get("userId");
+                    if (voucherId == null || orderId == null || userId == null
+                            || !NumberUtil.isLong(voucherId.toString()) || !NumberUtil.isLong(orderId.toString())
+                            || !NumberUtil.isLong(userId.toString())) {
+                        continue;
+                    }
+                    scan.orders.computeIfAbsent(Long.valueOf(voucherId.toString()), id -> new HashMap<>())
+                            .put(Long.valueOf(orderId.toString()), Long.valueOf(userId.toString()));
+                }
+                lastId = records.get(records.size() - 1).getId().getValue();
+                if (records.size() < SystemConstants.RECONCILE_PAGE_SIZE) {
+                    break;
+                }
+                range = Range.rightUnbounded(Range.Bound.exclusive(lastId));
+            }
+            scan.lastIds.put(stream, lastId == null ? "0-0" : lastId);
+        }
+    }
+
+    private ReconcileReport reconcileVoucher(Long voucherId, StreamScan scan, boolean apply) {
+        long begin = System.currentTimeMillis();
+        String rebuildKey = RedisConstants.SECKILL_ORDER_KEY + voucherId + ":rebuild";
+        stringRedisTemplate.delete(rebuildKey);
+        //stream中还没有处理完的订单去掉已经落库的,剩下的是未落库的订单
+        Map<Long, Long> pending = new HashMap<>();
+        ReconcileReport report = new ReconcileReport();
+        report.setVoucherId(voucherId);
+        //1.同一个事务快照中读取库存,并按订单id游标扫描订单
+        SeckillVoucher voucher = snapshotTemplate.execute(status -> {
+            SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+            if (seckillVoucher == null) {
+                return null;
+            }
+            //快照已经建立,把stream扫描到当前位置作为截止位置,之后写入的订单一定不在快照中,由脚本补上
+            scanStreams(scan);
+            pending.putAll(scan.orders.getOrDefault(voucherId, Collections.emptyMap()));
+            long orders = 0;
+            long cursor = 0;
+            while (true) {
+                List<VoucherOrder> page = voucherOrderService.query()
+                        .select("id", "user_id")
+                        .eq("voucher_id", voucherId)
+                        .gt("id", cursor)
+                        .orderByAsc("id")
+                        .last("limit " + SystemConstants.RECONCILE_PAGE_SIZE)
+                        .list();
+                if (page.isEmpty()) {
+                    break;
+                }
+                List<String> users = new ArrayList<>(page.size());
+                for (VoucherOrder order : page) {
+                    users.add(order.getUserId().toString());
+                    pending.remove(order.getId());
+                }
+                addBuyers(rebuildKey, users);
+                orders += page.size();
+                if (page.size() < SystemConstants.RECONCILE_PAGE_SIZE) {
+                    break;
+                }
+                cursor = page.get(page.size() - 1).getId();
+            }
+            report.setDbOrders(orders);
+            return seckillVoucher;
+        });
+        if (voucher == null) {
+            stringRedisTemplate.delete(rebuildKey);
+            return null;
+        }
+        //2.未落库订单的用户也已经下单
+        addBuyers(rebuildKey, pending.values().stream().map(String::valueOf).collect(Collectors.toList()));
+        //3.脚本中补上扫描之后新写入的订单,比较并替换
+        List<String> args = new ArrayList<>();
+        args.add(voucherId.toString());
+        args.add(rebuildKey);
+        args.add(apply ? "1" : "0");
+        args.add(String.valueOf(voucher.getStock() - pending.size()));
+        args.add(String.valueOf(SeckillVoucherServiceImpl.shardsOf(voucher)));
+        scan.lastIds.forEach((stream, lastId) -> {
+            args.add(stream);
+            args.add(lastId);
+        });
+        List<?> result = stringRedisTemplate.execute(RECONCILE_SCRIPT, Collections.emptyList(), args.toArray());
+        report.setDbStock(voucher.getStock());
+        report.setPendingOrders((long) pending.size());
+        report.setExpectedStock((Long) result.get(0));
+        report.setRedisStock((Long) result.get(1));
+        report.setBuyers((Long) result.get(2));
+        report.setMissingBuyers((Long) result.get(3));
+        report.setExtraBuyers((Long) result.get(4));
+        report.setDrift(!report.getExpectedStock().equals(report.getRedisStock())
+                || report.getMissingBuyers() > 0 || report.getExtraBuyers() > 0);
+        report.setApplied(apply);
+        report.setElapsedMillis(System.currentTimeMillis() - begin);
+        if (report.getDrift()) {
+            log.warn("秒杀对账发现偏差:{}", report);
+        }
+        if (apply && report.getExpectedStock() > 0) {
+            //库存恢复后清除各节点的售罄标记
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_PREHEAT_CHANNEL, voucherId.toString());
+        }
+        return report;
+    }
+
+    /**
+     * 分批pipeline写入临时集合,临时集合设置有效期,对账中断时自动清理
+     */
+    private void addBuyers(String key, List<String> users) {
+        if (users.isEmpty()) {
+            return;
+        }
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (List<String> batch : CollUtil.split(users, SystemConstants.RECONCILE_SADD_BATCH)) {
+                byte[][] members = new byte[batch.size()][];
+                for (int i = 0; i < batch.size(); i++) {
+                    members[i] = batch.get(i).getBytes(StandardCharsets.UTF_8);
+                }
+                connection.setCommands().sAdd(rawKey, members);
+            }
+            connection.keyCommands().expire(rawKey, TimeUnit.MINUTES.toSeconds(RedisConstants.LOCK_RECONCILE_TTL));
+            return null;
+        });
+    }
+
+    /**
+     * 一次对账中stream的扫描状态
+     */
+    private static final class StreamScan {
+        /**
+         * 每个分区扫描到的位置,也是脚本补扫的起点
+         */
+        private final Map<String, String> lastIds = new LinkedHashMap<>();
+        /**
+         * 扫描开始前消费者组的pending list和最后投递的位置
+         */
+        private final Map<String, Set<String>> pel = new HashMap<>();
+        private final Map<String, RecordId> lastDelivered = new HashMap<>();
+        /**
+         * 优惠券id -> (订单id -> 用户id),只包含还没有处理完的订单
+         */
+        private final Map<Long, Map<Long, Long>> orders = new HashMap<>();
+
+        /**
+         * 消息已经被确认:不在pending list中,并且不晚于最后投递的位置
+         */
+        private boolean processed(String stream, RecordId id) {
+            RecordId delivered = lastDelivered.get(stream);
+            if (delivered == null || pel.getOrDefault(stream, Collections.emptySet()).contains(id.getValue())) {
+                return false;
+            }
+            return id.getTimestamp() < delivered.getTimestamp()
+                    || id.getTimestamp().equals(delivered.getTimestamp()) && id.getSequence() <= delivered.getSequence();
+        }
+    }
+}
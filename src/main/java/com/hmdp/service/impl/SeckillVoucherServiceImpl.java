@@ -2,10 +2,24 @@ package com.hmdp.service.impl;
 
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.service.IBloomFilter;
 import com.hmdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.RedisConstants;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -17,4 +31,80 @@ import org.springframework.stereotype.Service;
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private IBloomFilter seckillVoucherBloomFilter;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @PostConstruct
+    private void initBloomFilter() {
+        seckillVoucherBloomFilter.init(lastId -> query().select("voucher_id").gt("voucher_id", lastId).orderByAsc("voucher_id")
+                .last("limit 1000").list().stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList()));
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_SECKILL_VOUCHER_KEY, seckillVoucherBloomFilter);
+    }
+
+    @Override
+    public SeckillVoucher queryVoucherMeta(Long voucherId) {
+        return cacheClient.queryWithPassThrough(RedisConstants.CACHE_SECKILL_VOUCHER_KEY, voucherId, SeckillVoucher.class,
+                this::getById, RedisConstants.CACHE_SECKILL_VOUCHER_TTL, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void refreshVoucherMeta(SeckillVoucher seckillVoucher) {
+        //1.秒杀脚本校验用的时间窗口,毫秒时间戳
+        Map<String, String> window = new HashMap<>(2);
+        window.put("begin", String.valueOf(seckillVoucher.getBeginTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+        window.put("end", String.valueOf(seckillVoucher.getEndTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()));
+        stringRedisTemplate.opsForHash().putAll(RedisConstants.SECKILL_VOUCHER_KEY + seckillVoucher.getVoucherId(), window);
+        //2.删除缓存,并通知各节点清除本地缓存
+        cacheClient.delete(RedisConstants.CACHE_SECKILL_VOUCHER_KEY + seckillVoucher.getVoucherId());
+    }
+
+    @Override
+    public void loadStock(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        int shards = shardsOf(seckillVoucher);
+        if (shards == 1) {
+            stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucherId, seckillVoucher.getStock().toString());
+            return;
+        }
+        //库存平均分到每个桶,余数分给前面的桶
+        int stock = seckillVoucher.getStock();
+        Map<String, String> buckets = new HashMap<>(shards);
+        for (int i = 0; i < shards; i++) {
+            buckets.put(bucketKey(voucherId, i), String.valueOf(stock / shards + (i < stock % shards ? 1 : 0)));
+        }
+        stringRedisTemplate.opsForValue().multiSet(buckets);
+    }
+
+    @Override
+    public void removeStock(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        List<String> keys = new ArrayList<>();
+        keys.add(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+        for (int i = 0, shards = shardsOf(seckillVoucher); shards > 1 && i < shards; i++) {
+            keys.add(bucketKey(voucherId, i));
+        }
+        stringRedisTemplate.delete(keys);
+    }
+
+    /**
+     * 库存分片数,没有设置时为1
+     */
+    public static int shardsOf(SeckillVoucher seckillVoucher) {
+        Integer shards = seckillVoucher == null ? null : seckillVoucher.getStockShards();
+        return shards == null || shards < 1 ? 1 : shards;
+    }
+
+    /**
+     * 库存桶的key,不带hash tag,各个桶分布在集群的不同slot上
+     */
+    public static String bucketKey(Long voucherId, int bucket) {
+        return RedisConstants.SECKILL_STOCK_KEY + voucherId + ":" + bucket;
+    }
+
 }
@@ -10,12 +10,16 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.IBloomFilter;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BinaryCacheCodec;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CompressingCacheCodec;
 import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.TtlPolicy;
 import org.apache.logging.log4j.message.ReusableMessage;
 import org.redisson.api.geo.GeoSearchArgs;
 import org.springframework.data.geo.Distance;
@@ -27,6 +31,7 @@ import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
@@ -56,134 +61,55 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private IBloomFilter shopBloomFilter;
+
+    @PostConstruct
+    private void initCache() {
+        shopBloomFilter.init(lastId -> query().select("id").gt("id", lastId).orderByAsc("id")
+                .last("limit 1000").list().stream().map(Shop::getId).collect(Collectors.toList()));
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_SHOP_KEY, shopBloomFilter);
+        cacheClient.registerBloomFilter(RedisConstants.CACHE_SHOP_LOGICAL_KEY, shopBloomFilter);
+        //店铺缓存使用二进制编码,较大的数据再压缩;按前缀匹配,逻辑过期的店铺缓存同样适用
+        cacheClient.registerCodec(RedisConstants.CACHE_SHOP_KEY,
+                new CompressingCacheCodec(new BinaryCacheCodec(), RedisConstants.CACHE_COMPRESS_THRESHOLD));
+        //店铺缓存按上一个有效期内的访问次数调整有效期:热门店铺延长,很少访问的店铺缩短
+        cacheClient.registerTtlPolicy(RedisConstants.CACHE_SHOP_KEY, TtlPolicy.adaptive(RedisConstants.CACHE_TTL_JITTER,
+                RedisConstants.CACHE_TTL_COLD_COUNT, RedisConstants.CACHE_TTL_COLD_FACTOR,
+                RedisConstants.CACHE_TTL_HOT_COUNT, RedisConstants.CACHE_TTL_HOT_FACTOR));
+    }
+
     @Override
     public Result queryById(Long id) {
         //缓存穿透
-        Shop shop = cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+//        Shop shop = cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
-//        互斥锁解决缓存击穿
-//        Shop shop = queryWithMutex(id);
+        //互斥锁解决缓存击穿:本jvm内的并发未命中合并为一次查库,节点之间用分布式锁
+        Shop shop = cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, RedisConstants.LOCK_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
 //        通过逻辑过期解决缓存击穿
-//        Shop shop = queryWithLogicalExpire(id);
+//        Shop shop = cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_LOGICAL_KEY, RedisConstants.LOCK_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
         if (shop == null) {
             return Result.fail("店铺不存在!");
         }
         return Result.ok(shop);
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
-    private Shop queryWithLogicalExpire(Long id) {
-        //1.从redis查询商铺缓存
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断缓存是否命中
-        if (StrUtil.isBlank(shopJson)) {
-            //3.存在,直接返回
-            return null;
-        }
-        //4.命中,需要把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            //5.2 未过期,直接返回店铺信息
-            return shop;
-        }
-        //5.1 已过期,需要进行缓存重建
-        //6.缓存重建
-        //6.1获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        boolean islock = tryLock(lockKey);
-        //6.2 判断是否获取成功
-        if (islock) {
-            //double check
-            if (expireTime.isAfter(LocalDateTime.now())) {
-                //5.2 未过期,直接返回店铺信息
-                return shop;
-            }
-            //6.3获取成功,开启独立线程,进行缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    saveShop2Redis(id, 20L);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } finally {
-                    unLock(lockKey);
-                }
-            });
-        }
-        //6.4 返回商铺信息
-        return shop;
-    }
-
-    private Shop queryWithMutex(Long id) {
-        //1.从redis查询商铺缓存
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2.判断缓存是否命中
-        if (StrUtil.isNotBlank(shopJson)) {
-            //3.存在,直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        //判断命中的是否是空值
-        if (shopJson != null) {
-            return null;
-        }
-        //4.实现缓存重建
-        //4.1 获取互斥锁
-        String lockKey = "lock:shop:" + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            //4.2 判断是否获取成功
-            //4.3失败,休眠并重试
-            if (!isLock) {
-                Thread.sleep(50);
-                return queryWithMutex(id);
-            }
-
-            //4.4成功,根据id查询数据库
-            shop = getById(id);
-            //5.判断商铺是否存在
-            if (shop == null) {
-                //6.不存在,返回不存在
-                //将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-            //7.存在,将商铺数据写入redis
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        } finally {
-            //释放互斥锁
-            unLock(lockKey);
-        }
-
-        return shop;
-    }
-
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
-
-    private void unLock(String key) {
-        stringRedisTemplate.delete(key);
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 加入布隆过滤器
+        shopBloomFilter.add(shop.getId());
+        // 返回店铺id
+        return Result.ok(shop.getId());
     }
 
     public void saveShop2Redis(Long id, Long expiredSeconds) {
         //1.查询店铺数量
         Shop shop = getById(id);
-        //2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expiredSeconds));
-        //3.写入redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY, JSONUtil.toJsonStr(redisData));
+        //2.封装逻辑过期时间,写入redis,与普通缓存使用不同的key
+        cacheClient.setWithLogicalExpired(RedisConstants.CACHE_SHOP_LOGICAL_KEY + id, shop, expiredSeconds, TimeUnit.SECONDS);
     }
 
     @Override
@@ -194,7 +120,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.fail("店铺id为空");
         }
         updateById(shop);
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        cacheClient.delete(RedisConstants.CACHE_SHOP_LOGICAL_KEY + id);
 
         return Result.ok();
     }
@@ -238,9 +165,10 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr, distance);
         });
-        //5.根据id查询shops
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
+        //5.根据id查询shops,优先走缓存
+        List<Shop> shops = cacheClient.multiGet(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                idList -> listByIds(idList).stream().collect(Collectors.toMap(Shop::getId, shop -> shop)),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
         for (Shop shop : shops) {
             shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
         }
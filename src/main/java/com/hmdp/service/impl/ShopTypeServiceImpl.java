@@ -1,60 +1,242 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.SingleFlight;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import org.springframework.data.redis.core.RedisOperations;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_CHANNEL;
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_LIST_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_REFRESH;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_VERSION_KEY;
 
 /**
  * <p>
  * 服务实现类
  * </p>
+ * 店铺类型列表保存为本地不可变快照,响应体提前序列化好;redis中只保存一个带版本号的hash,
+ * 修改类型时版本号加一,并广播给所有节点替换快照
  *
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
+    private static final DefaultRedisScript<Long> SET_SCRIPT;
+
+    static {
+        SET_SCRIPT = new DefaultRedisScript<>();
+        SET_SCRIPT.setLocation(new ClassPathResource("shop_type_set.lua"));
+        SET_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 快照过期后在后台刷新,读请求继续返回旧快照
+     */
+    private static final ExecutorService REFRESH_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "shop-type-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * 收到版本通知后最多重新加载的次数
+     */
+    private static final int RELOAD_ATTEMPTS = 3;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Resource
+    private ObjectMapper objectMapper;
+
+    private final AtomicReference<TypeListSnapshot> snapshot = new AtomicReference<>();
+
+    /**
+     * 本jvm内只有一个线程加载快照
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
     @Override
     public Result queryTypeList() {
-        //1.从redis查询商铺类型缓存
-        Set<String> shopSetJsonSet = stringRedisTemplate.opsForZSet().range(CACHE_SHOP_TYPE_LIST_KEY, 0, -1);
-        //2.命中,转换格式返回
-        if (shopSetJsonSet.size() != 0) {
-            List<ShopType> shopTypes = new ArrayList<>();
-            for (String jsonStr : shopSetJsonSet) {
-                shopTypes.add(JSONUtil.toBean(jsonStr, ShopType.class));
+        TypeListSnapshot current = currentSnapshot();
+        return current == null ? Result.fail("404 商店分类不存在") : Result.ok(current.types);
+    }
+
+    @Override
+    public byte[] queryTypeListBody() {
+        TypeListSnapshot current = currentSnapshot();
+        return current == null ? toBody(Result.fail("404 商店分类不存在")) : current.body;
+    }
+
+    @Override
+    public Result saveType(ShopType shopType) {
+        save(shopType);
+        publishTypeList();
+        return Result.ok(shopType.getId());
+    }
+
+    @Override
+    public Result updateType(ShopType shopType) {
+        if (shopType.getId() == null) {
+            return Result.fail("店铺类型id不能为空");
+        }
+        updateById(shopType);
+        publishTypeList();
+        return Result.ok();
+    }
+
+    @Override
+    public void onTypeListChanged(long version) {
+        //合并到的加载可能在新版本写入redis之前就已经读过,加载后版本仍然落后时再加载一次
+        for (int i = 0; i < RELOAD_ATTEMPTS; i++) {
+            TypeListSnapshot current = snapshot.get();
+            if (current != null && current.version >= version) {
+                return;
             }
-            return Result.ok(shopTypes);
+            singleFlight.execute(CACHE_SHOP_TYPE_LIST_KEY, this::load);
+        }
+        TypeListSnapshot current = snapshot.get();
+        if (current == null || current.version < version) {
+            log.warn("店铺类型快照未能更新到版本{},等待下次刷新", version);
         }
-        //3.未命中,根据数据库查询
+    }
+
+    /**
+     * 快照未过期直接返回;过期时返回旧快照并在后台刷新,只有还没有快照时才同步加载
+     */
+    private TypeListSnapshot currentSnapshot() {
+        TypeListSnapshot current = snapshot.get();
+        if (current == null) {
+            return singleFlight.execute(CACHE_SHOP_TYPE_LIST_KEY, this::load);
+        }
+        cacheMetrics.localHit(CACHE_SHOP_TYPE_LIST_KEY);
+        if (System.currentTimeMillis() - current.loadedAt >= TimeUnit.SECONDS.toMillis(CACHE_SHOP_TYPE_REFRESH)
+                && refreshing.compareAndSet(false, true)) {
+            REFRESH_EXECUTOR.submit(() -> {
+                try {
+                    singleFlight.execute(CACHE_SHOP_TYPE_LIST_KEY, this::load);
+                } catch (Exception e) {
+                    log.error("店铺类型快照刷新失败", e);
+                } finally {
+                    refreshing.set(false);
+                }
+            });
+        }
+        return current;
+    }
+
+    /**
+     * 从redis加载快照,未命中时查询数据库重建
+     */
+    private TypeListSnapshot load() {
+        TypeListSnapshot fromRedis = readRedis();
+        if (fromRedis != null) {
+            cacheMetrics.hit(CACHE_SHOP_TYPE_LIST_KEY);
+            return fromRedis;
+        }
+        cacheMetrics.miss(CACHE_SHOP_TYPE_LIST_KEY);
+        String version = stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_VERSION_KEY);
+        return rebuild(version == null ? 0 : Long.parseLong(version));
+    }
+
+    private TypeListSnapshot readRedis() {
+        long begin = System.nanoTime();
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(CACHE_SHOP_TYPE_LIST_KEY, Arrays.asList("version", "data"));
+        cacheMetrics.redisLatency(CACHE_SHOP_TYPE_LIST_KEY, System.nanoTime() - begin);
+        if (values.get(0) == null || values.get(1) == null) {
+            return null;
+        }
+        return install(Long.parseLong((String) values.get(0)), JSONUtil.toList((String) values.get(1), ShopType.class));
+    }
+
+    /**
+     * 查询数据库,只有版本号更大时才写入redis
+     */
+    private TypeListSnapshot rebuild(long version) {
+        long begin = System.nanoTime();
         List<ShopType> shopTypeList = query().orderByAsc("sort").list();
-        //4.判断商铺类型是否存在
+        cacheMetrics.dbFallback(CACHE_SHOP_TYPE_LIST_KEY, System.nanoTime() - begin);
         if (shopTypeList == null || shopTypeList.isEmpty()) {
-            return Result.fail("404 商店分类不存在");
+            return null;
         }
-        //5.不存在,返回404
+        Long result = stringRedisTemplate.execute(SET_SCRIPT, Collections.singletonList(CACHE_SHOP_TYPE_LIST_KEY),
+                String.valueOf(version), JSONUtil.toJsonStr(shopTypeList));
+        if (result == null || result == 0) {
+            //其他节点已经写入了相同或更新的版本,以redis为准
+            TypeListSnapshot fromRedis = readRedis();
+            if (fromRedis != null) {
+                return fromRedis;
+            }
+        }
+        return install(version, shopTypeList);
+    }
+
+    /**
+     * 类型修改后版本号加一,重建快照并通知其他节点
+     */
+    private void publishTypeList() {
+        Long version = stringRedisTemplate.opsForValue().increment(CACHE_SHOP_TYPE_VERSION_KEY);
+        TypeListSnapshot next = singleFlight.execute(CACHE_SHOP_TYPE_LIST_KEY + ":" + version, () -> rebuild(version));
+        if (next != null) {
+            stringRedisTemplate.convertAndSend(CACHE_SHOP_TYPE_CHANNEL, String.valueOf(next.version));
+        }
+    }
+
+    /**
+     * 原子替换快照,不会被旧版本覆盖;读到旧版本时保留当前数据,只刷新加载时间
+     */
+    private TypeListSnapshot install(long version, List<ShopType> types) {
+        TypeListSnapshot next = new TypeListSnapshot(version, Collections.unmodifiableList(types), toBody(Result.ok(types)));
+        return snapshot.accumulateAndGet(next, (prev, x) -> prev == null || x.version >= prev.version
+                ? x : new TypeListSnapshot(prev.version, prev.types, prev.body));
+    }
+
+    private byte[] toBody(Result result) {
+        try {
+            return objectMapper.writeValueAsBytes(result);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("店铺类型序列化失败", e);
+        }
+    }
+
+    private static final class TypeListSnapshot {
+        private final long version;
+        private final List<ShopType> types;
+        private final byte[] body;
+        private final long loadedAt = System.currentTimeMillis();
 
-        //6.存在,写入redis
-        for (ShopType shopType : shopTypeList) {
-            stringRedisTemplate.opsForZSet().add(CACHE_SHOP_TYPE_LIST_KEY, JSONUtil.toJsonStr(shopType), shopType.getSort());
+        private TypeListSnapshot(long version, List<ShopType> types, byte[] body) {
+            this.version = version;
+            this.types = types;
+            this.body = body;
         }
-        return Result.ok(shopTypeList);
     }
 }
@@ -1,6 +1,8 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.util.NumberUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
@@ -8,28 +10,53 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.OrderJournal;
+import com.hmdp.utils.OrderStatusTracker;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisWorker;
-import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SeckillBackpressure;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SoldOutRegistry;
+import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisConnectionFailureException;
+import org.springframework.data.redis.connection.RedisZSetCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.CannotCreateTransactionException;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -53,8 +80,28 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private HotKeyDetector hotKeyDetector;
 
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
+    @Resource
+    private OrderStatusTracker orderStatusTracker;
+
+    @Resource
+    private SeckillBackpressure seckillBackpressure;
+
+    @Resource
+    private OrderJournal orderJournal;
+
+    /**
+     * 消费线程中没有AopContext,直接注入代理对象以使用事务
+     */
+    @Resource
+    @Lazy
     private IVoucherOrderService proxy;
 
     public static final DefaultRedisScript<Long> SECKILL_SCRIPT;
@@ -65,51 +112,568 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
+    private static final DefaultRedisScript<Long> REPLAY_SCRIPT;
+
+    static {
+        REPLAY_SCRIPT = new DefaultRedisScript<>();
+        REPLAY_SCRIPT.setLocation(new ClassPathResource("seckill_replay.lua"));
+        REPLAY_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> BUCKET_SCRIPT;
+
+    static {
+        BUCKET_SCRIPT = new DefaultRedisScript<>();
+        BUCKET_SCRIPT.setLocation(new ClassPathResource("seckill_bucket.lua"));
+        BUCKET_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<Long> TRIM_SCRIPT;
+
+    static {
+        TRIM_SCRIPT = new DefaultRedisScript<>();
+        TRIM_SCRIPT.setLocation(new ClassPathResource("stream_trim.lua"));
+        TRIM_SCRIPT.setResultType(Long.class);
+    }
+
 //    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    /**
+     * 订单消息按userId分区的数量,为1时只使用stream.orders
+     */
+    @Value("${hmdp.seckill.partitions:1}")
+    private int partitions;
+
+    /**
+     * 每个节点的消费者数量范围,按积压量在这个范围内伸缩
+     */
+    @Value("${hmdp.seckill.min-consumers:1}")
+    private int minConsumers;
+
+    @Value("${hmdp.seckill.max-consumers:8}")
+    private int maxConsumers;
+
+    /**
+     * 投递次数达到这个值仍失败的消息移入死信队列
+     */
+    @Value("${hmdp.seckill.max-retries:5}")
+    private int maxRetries;
+
+    private String[] streams;
+
+    /**
+     * 消费者名称前缀,pid@host保证各节点、各次启动不重复
+     */
+    private final String consumerPrefix = ManagementFactory.getRuntimeMXBean().getName() + "-";
+    private final AtomicInteger consumerSeq = new AtomicInteger();
+    private final Deque<VoucherOrderHandler> handlers = new ConcurrentLinkedDeque<>();
+
+    /**
+     * 积压量连续为0的检查次数,用于缩容
+     */
+    private int idleChecks;
+
+    /**
+     * 上一次采样时的全局消费数,用于计算消费速率
+     */
+    private long lastAcked = -1;
+    private long lastSampleAt;
+    private double drainRate;
+
+    private final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "seckill-order-" + consumerSeq.get());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ScheduledExecutorService ORDER_MONITOR_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-order-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     @PostConstruct
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        //1.创建各分区的消费者组
+        streams = new String[partitions];
+        for (int i = 0; i < partitions; i++) {
+            streams[i] = streamOf(i);
+            createGroup(streams[i]);
+        }
+        //2.启动消费者
+        for (int i = 0; i < minConsumers; i++) {
+            startConsumer();
+        }
+        //3.启动时和定期认领超时未确认的消息,定期按积压量伸缩消费者,定期裁剪已确认的消息
+        ORDER_MONITOR_EXECUTOR.scheduleWithFixedDelay(this::recoverPending,
+                0, SystemConstants.SECKILL_ORDER_RECOVER_INTERVAL, TimeUnit.SECONDS);
+        ORDER_MONITOR_EXECUTOR.scheduleWithFixedDelay(this::scaleConsumers,
+                SystemConstants.SECKILL_ORDER_SCALE_INTERVAL, SystemConstants.SECKILL_ORDER_SCALE_INTERVAL, TimeUnit.SECONDS);
+        ORDER_MONITOR_EXECUTOR.scheduleWithFixedDelay(this::trimStreams,
+                SystemConstants.SECKILL_ORDER_TRIM_INTERVAL, SystemConstants.SECKILL_ORDER_TRIM_INTERVAL, TimeUnit.SECONDS);
+        //4.发布积压量和消费速率,秒杀入口据此降级
+        ORDER_MONITOR_EXECUTOR.scheduleWithFixedDelay(this::publishOrderStats,
+                SystemConstants.SECKILL_ORDER_SCALE_INTERVAL, SystemConstants.SECKILL_ORDER_SCALE_INTERVAL, TimeUnit.SECONDS);
+        //5.redis恢复后回放降级期间写入本地日志的订单
+        if (orderJournal.isEnabled()) {
+            ORDER_MONITOR_EXECUTOR.scheduleWithFixedDelay(this::replayJournal,
+                    0, SystemConstants.SECKILL_ORDER_SCALE_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        ORDER_MONITOR_EXECUTOR.shutdownNow();
+        handlers.forEach(VoucherOrderHandler::stop);
+        SECKILL_ORDER_EXECUTOR.shutdown();
+    }
+
+    private String streamOf(int partition) {
+        return partitions == 1 ? RedisConstants.SECKILL_ORDER_STREAM : RedisConstants.SECKILL_ORDER_STREAM + ":" + partition;
+    }
+
+    private String streamOfUser(Long userId) {
+        return streamOf((int) (userId % partitions));
+    }
+
+    private void createGroup(String stream) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    stream.getBytes(StandardCharsets.UTF_8), RedisConstants.SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            //BUSYGROUP,消费者组已经存在
+            log.debug("消费者组已存在:{}", stream);
+        }
+    }
+
+    private void startConsumer() {
+        VoucherOrderHandler handler = new VoucherOrderHandler(consumerPrefix + consumerSeq.incrementAndGet());
+        handlers.push(handler);
+        SECKILL_ORDER_EXECUTOR.submit(handler);
+        log.info("启动订单消费者:{}", handler.name);
+    }
+
+    /**
+     * 按积压量伸缩:积压超过当前消费者一轮的处理量时扩容,持续无积压时缩容
+     */
+    private void scaleConsumers() {
+        try {
+            long lag = lag(maxConsumers * SystemConstants.SECKILL_ORDER_BATCH_SIZE);
+            int size = handlers.size();
+            if (lag > (long) size * SystemConstants.SECKILL_ORDER_BATCH_SIZE && size < maxConsumers) {
+                idleChecks = 0;
+                startConsumer();
+                return;
+            }
+            idleChecks = lag == 0 ? idleChecks + 1 : 0;
+            if (idleChecks >= SystemConstants.SECKILL_ORDER_IDLE_CHECKS && size > minConsumers) {
+                idleChecks = 0;
+                VoucherOrderHandler handler = handlers.poll();
+                if (handler != null) {
+                    handler.stop();
+                    log.info("停止订单消费者:{}", handler.name);
+                }
+            }
+        } catch (Exception e) {
+            log.error("订单消费者伸缩异常", e);
+        }
+    }
+
+    /**
+     * 积压量 = 已投递未确认的消息 + 尚未投递的消息,后者最多探测limit条
+     */
+    private long lag(int limit) {
+        return SeckillBackpressure.backlog(stringRedisTemplate.opsForStream(), Arrays.asList(streams),
+                RedisConstants.SECKILL_ORDER_GROUP, limit);
+    }
+
+    /**
+     * 认领超时未确认的消息(消费者宕机或处理失败)重新处理:投递次数越多等待越久,
+     * 达到重试次数的移入死信队列,不会一直占着pending list
+     */
+    private void recoverPending() {
+        Consumer recoverer = Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, consumerPrefix + "recover");
+        Duration minIdle = Duration.ofSeconds(SystemConstants.SECKILL_ORDER_CLAIM_IDLE);
+        for (String stream : streams) {
+            try {
+                Range<String> range = Range.unbounded();
+                while (true) {
+                    //1.分页查询pending list,找出已经等够退避时间的消息
+                    PendingMessages pending = stringRedisTemplate.opsForStream().pending(stream,
+                            RedisConstants.SECKILL_ORDER_GROUP, range, SystemConstants.SECKILL_ORDER_BATCH_SIZE);
+                    if (pending.isEmpty()) {
+                        break;
+                    }
+                    List<RecordId> retry = new ArrayList<>();
+                    Map<RecordId, Long> dead = new HashMap<>();
+                    String lastId = null;
+                    for (PendingMessage message : pending) {
+                        lastId = message.getIdAsString();
+                        long deliveries = message.getTotalDeliveryCount();
+                        if (message.getElapsedTimeSinceLastDelivery().compareTo(backoff(deliveries)) < 0) {
+                            continue;
+                        }
+                        if (deliveries >= maxRetries) {
+                            dead.put(message.getId(), deliveries);
+                        } else {
+                            retry.add(message.getId());
+                        }
+                    }
+                    //2.XCLAIM到恢复消费者名下,多个节点同时认领时只有一个成功
+                    if (!retry.isEmpty()) {
+                        List<MapRecord<String, Object, Object>> claimed = stringRedisTemplate.opsForStream().claim(stream,
+                                RedisConstants.SECKILL_ORDER_GROUP, recoverer.getName(), minIdle, retry.toArray(new RecordId[0]));
+                        if (claimed != null && !claimed.isEmpty()) {
+                            log.info("认领未确认订单{}条:{}", claimed.size(), stream);
+                            handleRecords(claimed);
+                        }
+                    }
+                    if (!dead.isEmpty()) {
+                        List<MapRecord<String, Object, Object>> claimed = stringRedisTemplate.opsForStream().claim(stream,
+                                RedisConstants.SECKILL_ORDER_GROUP, recoverer.getName(), minIdle, dead.keySet().toArray(new RecordId[0]));
+                        if (claimed != null && !claimed.isEmpty()) {
+                            deadLetter(stream, claimed, dead);
+                        }
+                    }
+                    if (pending.size() < SystemConstants.SECKILL_ORDER_BATCH_SIZE) {
+                        break;
+                    }
+                    range = Range.rightUnbounded(Range.Bound.exclusive(lastId));
+                }
+            } catch (Exception e) {
+                log.error("认领未确认订单异常:" + stream, e);
+            }
+        }
+    }
+
+    /**
+     * 第n次投递后等待 CLAIM_IDLE * 2^(n-1) 秒再重试,不超过RETRY_MAX_BACKOFF
+     */
+    private Duration backoff(long deliveries) {
+        long seconds = SystemConstants.SECKILL_ORDER_CLAIM_IDLE << Math.min(Math.max(deliveries - 1, 0), 10);
+        return Duration.ofSeconds(Math.min(seconds, SystemConstants.SECKILL_ORDER_RETRY_MAX_BACKOFF));
+    }
+
+    /**
+     * 整批处理失败时逐条处理,只让出错的消息留在pending list中,等待认领重试或移入死信队列;
+     * 数据库或redis不可用时逐条处理也会失败,直接返回
+     *
+     * @return 是否全部处理成功
+     */
+    private boolean handleRecords(List<MapRecord<String, Object, Object>> records) {
+        try {
+            handleBatch(records);
+            return true;
+        } catch (Exception e) {
+            if (records.size() == 1 || isUnavailable(e)) {
+                log.error("处理订单失败:" + records.size() + "条", e);
+                return false;
+            }
+            log.warn("订单批次处理失败,逐条处理:{}条", records.size(), e);
+        }
+        boolean handled = true;
+        for (MapRecord<String, Object, Object> record : records) {
+            try {
+                handleBatch(Collections.singletonList(record));
+            } catch (Exception e) {
+                handled = false;
+                log.error("处理订单失败:" + record.getId(), e);
+                if (isUnavailable(e)) {
+                    break;
+                }
+            }
+        }
+        return handled;
+    }
+
+    private static boolean isUnavailable(Exception e) {
+        return e instanceof TransientDataAccessException
+                || e instanceof DataAccessResourceFailureException
+                || e instanceof CannotCreateTransactionException;
+    }
+
+    /**
+     * 移入死信队列并确认原消息,订单状态记为失败
+     */
+    private void deadLetter(String stream, List<MapRecord<String, Object, Object>> records, Map<RecordId, Long> deliveries) {
+        Map<Long, String> statuses = new HashMap<>(records.size());
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<Object, Object> value = new HashMap<>(record.getValue());
+            value.put("source", stream);
+            value.put("sourceId", record.getId().getValue());
+            value.put("deliveries", String.valueOf(deliveries.getOrDefault(record.getId(), (long) maxRetries)));
+            stringRedisTemplate.opsForStream().add(RedisConstants.SECKILL_ORDER_DLQ, value);
+            stringRedisTemplate.opsForStream().acknowledge(stream, RedisConstants.SECKILL_ORDER_GROUP, record.getId());
+            Object orderId = record.getValue().get("orderId");
+            Object userId = record.getValue().get("userId");
+            if (orderId != null && NumberUtil.isLong(orderId.toString()) && userId != null && NumberUtil.isLong(userId.toString())) {
+                statuses.put(Long.valueOf(orderId.toString()), OrderStatusTracker.failed(Long.valueOf(userId.toString()), "订单处理失败"));
+            }
+            log.error("订单消息重试{}次仍失败,移入死信队列:{} {}", value.get("deliveries"), stream, record.getId());
+        }
+        stringRedisTemplate.opsForStream().trim(RedisConstants.SECKILL_ORDER_DLQ, RedisConstants.SECKILL_ORDER_DLQ_MAX_LEN, true);
+        orderStatusTracker.finish(statuses);
+    }
+
+    /**
+     * 删除已确认的消息,stream的长度只取决于积压量
+     */
+    private void trimStreams() {
+        for (String stream : streams) {
+            try {
+                Long trimmed = stringRedisTemplate.execute(TRIM_SCRIPT, Collections.singletonList(stream), RedisConstants.SECKILL_ORDER_GROUP);
+                if (trimmed != null && trimmed > 0) {
+                    log.debug("裁剪订单消息{}条:{}", trimmed, stream);
+                }
+            } catch (Exception e) {
+                log.error("裁剪订单消息异常:" + stream, e);
+            }
+        }
+    }
+
+    /**
+     * 已确认的消息每秒裁剪一次,stream长度近似等于积压量(误差为近似裁剪保留的一个节点),不需要逐条扫描
+     */
+    private void publishOrderStats() {
+        try {
+            //积压量按未确认+未投递统计,超过拒绝阈值后不必再精确
+            long lag = lag((int) Math.min(Integer.MAX_VALUE - 1, seckillBackpressure.rejectLag()));
+            long acked = seckillBackpressure.ackedCount();
+            long now = System.currentTimeMillis();
+            if (lastAcked >= 0 && now > lastSampleAt) {
+                double rate = Math.max(0, acked - lastAcked) * 1000.0 / (now - lastSampleAt);
+                //指数平滑,避免一次大批量造成抖动
+                drainRate = drainRate == 0 ? rate : drainRate * 0.7 + rate * 0.3;
+            }
+            lastAcked = acked;
+            lastSampleAt = now;
+            seckillBackpressure.publish(lag, drainRate);
+        } catch (Exception e) {
+            log.error("发布订单积压异常", e);
+        }
+    }
+
+    /**
+     * 按顺序回放本地日志,redis仍不可用时停在失败的那一条,下次继续
+     */
+    private void replayJournal() {
+        try {
+            int replayed = orderJournal.replay(this::replayOrder);
+            if (replayed > 0) {
+                log.info("回放本地订单日志{}条", replayed);
+            }
+        } catch (Exception e) {
+            log.warn("回放本地订单日志失败,等待redis恢复:{}", e.getMessage());
+        }
+    }
+
+    private void replayOrder(VoucherOrder order) {
+        SeckillVoucher voucher = seckillVoucherService.queryVoucherMeta(order.getVoucherId());
+        int shards = SeckillVoucherServiceImpl.shardsOf(voucher);
+        Long result;
+        if (shards > 1) {
+            //已经回放过
+            if (stringRedisTemplate.opsForHash().hasKey(OrderStatusTracker.keyOf(order.getId()), order.getId().toString())) {
+                return;
+            }
+            result = executeShardedSeckill(order.getVoucherId(), order.getUserId(), order.getId(), shards);
+        } else {
+            result = stringRedisTemplate.execute(
+                    REPLAY_SCRIPT,
+                    Collections.emptyList(),
+                    order.getVoucherId().toString(),
+                    order.getUserId().toString(),
+                    order.getId().toString(),
+                    streamOfUser(order.getUserId()),
+                    OrderStatusTracker.keyOf(order.getId()),
+                    RedisConstants.ORDER_STATUS_TTL.toString()
+            );
+        }
+        if (result != null && result == 5) {
+            //库存key不存在:秒杀已结束(库存已被清理)或优惠券已删除时记为失败并继续回放,
+            //否则库存还没有加载到redis,停在这一条,下次回放时重试
+            if (voucher != null && voucher.getEndTime().isAfter(LocalDateTime.now())) {
+                throw new IllegalStateException("秒杀库存未加载:" + order.getVoucherId());
+            }
+            log.warn("回放订单失败,秒杀已结束:{}", order.getId());
+            orderStatusTracker.finish(Collections.singletonMap(order.getId(), OrderStatusTracker.failed(order.getUserId(), "秒杀已经结束")));
+            return;
+        }
+        if (result != null && result != 0) {
+            //降级期间按本地库存接受的订单,redis中库存不足或已下单,只能记为失败
+            String reason = result == 1 ? "库存不足" : "不能重复下单";
+            log.warn("回放订单失败:{} {}", order.getId(), reason);
+            orderStatusTracker.finish(Collections.singletonMap(order.getId(), OrderStatusTracker.failed(order.getUserId(), reason)));
+        }
+    }
+
+    @Override
+    public List<String> orderStreams() {
+        return Arrays.asList(streams);
+    }
+
+    @Override
+    public Result queryDeadLetters(int count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                RedisConstants.SECKILL_ORDER_DLQ, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        List<Map<Object, Object>> list = new ArrayList<>();
+        if (records != null) {
+            for (MapRecord<String, Object, Object> record : records) {
+                Map<Object, Object> value = new HashMap<>(record.getValue());
+                value.put("id", record.getId().getValue());
+                list.add(value);
+            }
+        }
+        return Result.ok(list);
+    }
+
+    @Override
+    public Result replayDeadLetters(int count) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(
+                RedisConstants.SECKILL_ORDER_DLQ, Range.unbounded(), RedisZSetCommands.Limit.limit().count(count));
+        int replayed = 0;
+        if (records == null) {
+            return Result.ok(replayed);
+        }
+        for (MapRecord<String, Object, Object> record : records) {
+            Map<Object, Object> value = new HashMap<>(record.getValue());
+            value.remove("source");
+            value.remove("sourceId");
+            value.remove("deliveries");
+            Object userId = value.get("userId");
+            if (userId == null || !NumberUtil.isLong(userId.toString())) {
+                log.warn("死信消息缺少userId,无法重新投递:{}", record.getId());
+                continue;
+            }
+            //分区数可能已经修改,按当前配置重新计算分区;订单按唯一索引幂等,重复投递不会重复下单
+            stringRedisTemplate.opsForStream().add(streamOfUser(Long.valueOf(userId.toString())), value);
+            stringRedisTemplate.opsForStream().delete(RedisConstants.SECKILL_ORDER_DLQ, record.getId());
+            replayed++;
+        }
+        log.info("重新投递死信订单{}条", replayed);
+        return Result.ok(replayed);
     }
 
+    /**
+     * 批量消费订单消息:一次XREADGROUP读取所有分区的一批消息,一个事务写库,每个分区一次ACK
+     */
     private class VoucherOrderHandler implements Runnable {
-        String queueName = "stream.orders";
+        private final String name;
+        private volatile boolean running = true;
+
+        private VoucherOrderHandler(String name) {
+            this.name = name;
+        }
+
+        private void stop() {
+            running = false;
+        }
 
         @Override
+        @SuppressWarnings("unchecked")
         public void run() {
-            while (true) {
+            Consumer consumer = Consumer.from(RedisConstants.SECKILL_ORDER_GROUP, name);
+            StreamOffset<String>[] offsets = new StreamOffset[streams.length];
+            for (int i = 0; i < streams.length; i++) {
+                offsets[i] = StreamOffset.create(streams[i], ReadOffset.lastConsumed());
+            }
+            //连续失败后等待的毫秒数,成功后清零
+            long failBackoff = 0;
+            while (running) {
+                boolean handled;
                 try {
-                    //获取pending list中的订单信息
+                    //1.获取消息队列中的订单信息
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                            consumer,
+                            StreamReadOptions.empty().count(SystemConstants.SECKILL_ORDER_BATCH_SIZE).block(Duration.ofSeconds(2)),
+                            offsets
                     );
-                    //判断信息获取是否成功
+                    //2.没有消息,继续下一次读取
                     if (list == null || list.isEmpty()) {
-                        break;
+                        continue;
                     }
-                    //解析订单信息
-                    MapRecord<String, Object, Object> mapRecord = list.get(0);
-                    Map<Object, Object> map = mapRecord.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(map, new VoucherOrder(), true);
-                    //获取成功,可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //ACK确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", mapRecord.getId());
+                    //3.整批下单并ACK,失败时逐条处理
+                    handled = handleRecords(list);
                 } catch (Exception e) {
-                    log.error("处理订单异常！");
+                    log.error("处理订单异常", e);
+                    handled = false;
+                }
+                //4.失败的消息留在pending list中,由recoverPending按投递次数退避重试;
+                //这里只退避读取新消息,数据库或redis故障时不会空转
+                if (handled) {
+                    failBackoff = 0;
+                    continue;
+                }
+                failBackoff = failBackoff == 0 ? SystemConstants.SECKILL_ORDER_FAIL_BACKOFF
+                        : Math.min(failBackoff * 2, SystemConstants.SECKILL_ORDER_FAIL_MAX_BACKOFF);
+                try {
+                    Thread.sleep(failBackoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            //5.停止后清理没有未确认消息的消费者
+            for (String stream : streams) {
+                try {
+                    if (stringRedisTemplate.opsForStream().pending(stream, consumer, Range.unbounded(), 1L).isEmpty()) {
+                        stringRedisTemplate.opsForStream().deleteConsumer(stream, consumer);
+                    }
+                } catch (Exception e) {
+                    log.warn("清理订单消费者失败:{}", name);
                 }
             }
         }
     }
 
+    private void handleBatch(List<MapRecord<String, Object, Object>> list) {
+        //1.解析订单信息,消息中的订单id字段为orderId
+        List<VoucherOrder> voucherOrders = new ArrayList<>(list.size());
+        Map<String, List<RecordId>> recordIds = new HashMap<>();
+        for (MapRecord<String, Object, Object> mapRecord : list) {
+            Map<Object, Object> map = mapRecord.getValue();
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(map, new VoucherOrder(), true);
+            voucherOrder.setId(Long.valueOf(map.get("orderId").toString()));
+            voucherOrders.add(voucherOrder);
+            recordIds.computeIfAbsent(mapRecord.getStream(), k -> new ArrayList<>()).add(mapRecord.getId());
+        }
+        //2.一个事务写库
+        Map<Long, String> failed = proxy.createVoucherOrders(voucherOrders);
+        //3.每个分区一次ACK确认
+        recordIds.forEach((stream, ids) -> stringRedisTemplate.opsForStream().acknowledge(
+                stream, RedisConstants.SECKILL_ORDER_GROUP, ids.toArray(new RecordId[0])));
+        seckillBackpressure.drained(list.size());
+        //4.写入订单最终状态
+        Map<Long, String> statuses = new HashMap<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            String reason = failed.get(voucherOrder.getId());
+            statuses.put(voucherOrder.getId(), reason == null
+                    ? OrderStatusTracker.created(voucherOrder.getUserId())
+                    : OrderStatusTracker.failed(voucherOrder.getUserId(), reason));
+        }
+        orderStatusTracker.finish(statuses);
+    }
+
     @Override
     public Result seckillVoucher(Long voucherId) {
-//        2.查询优惠券信息
-        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        //0.本地已标记售罄,直接返回
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+//        1.查询优惠券信息,本地缓存未命中时由布隆过滤器拦截不存在的优惠券
+        SeckillVoucher voucher;
+        try {
+            voucher = seckillVoucherService.queryVoucherMeta(voucherId);
+        } catch (RedisConnectionFailureException | QueryTimeoutException e) {
+            if (!orderJournal.isEnabled()) {
+                throw e;
+            }
+            //redis不可用,降级查询数据库
+            voucher = seckillVoucherService.getById(voucherId);
+        }
+        if (voucher == null) {
+            return Result.fail("优惠券不存在!");
+        }
         //3.判断秒杀
         if (voucher.getBeginTime().isAfter(LocalDateTime.now())) {
             //3.1 没开始
@@ -119,39 +683,139 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             //3.2 结束了
             return Result.fail("秒杀已经结束啦!");
         }
+        //4.订单积压过多时降级,再限流,超出的请求直接返回
+        if (!seckillBackpressure.tryAdmit() || !seckillRateLimiter.tryAcquire(voucherId)) {
+            return Result.fail("系统繁忙,请稍后再试");
+        }
 
+        //库存key在lua中扣减,只统计访问频率,不做本地副本
+        hotKeyDetector.record(RedisConstants.SECKILL_STOCK_KEY + voucherId);
         //执行lua脚本
         long orderId = redisWorker.nextId("order");
         Long userId = UserHolder.getUser().getId();
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString(),
-                String.valueOf(orderId)
-        );
+        Long result;
+        try {
+            int shards = SeckillVoucherServiceImpl.shardsOf(voucher);
+            result = shards > 1
+                    ? executeShardedSeckill(voucherId, userId, orderId, shards)
+                    : executeSeckill(voucherId, userId, orderId);
+        } catch (RedisConnectionFailureException | QueryTimeoutException e) {
+            //redis不可用,降级写入本地日志
+            if (!orderJournal.isEnabled()) {
+                throw e;
+            }
+            log.warn("redis不可用,订单写入本地日志:{}", orderId);
+            return seckillWithJournal(voucherId, userId, orderId, voucher.getStock());
+        }
         int r = result.intValue();
+        if (r == 3) {
+            return Result.fail("秒杀尚未开始!");
+        }
+        if (r == 4) {
+            return Result.fail("秒杀已经结束啦!");
+        }
+        if (r == 5) {
+            //库存key不存在(未预热或被误删),不能当作售罄
+            log.error("秒杀库存未加载到redis:{}", voucherId);
+            return Result.fail("系统繁忙,请稍后再试");
+        }
+        if (r == 1) {
+            //库存不足,标记售罄并通知其他节点
+            soldOutRegistry.markSoldOut(voucherId);
+        }
         if (r != 0) {
             return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
         }
-        //有购买资格
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-        return Result.ok(orderId);
+        //有购买资格,订单积压时附带排队提示
+        String notice = seckillBackpressure.queueNotice();
+        return notice == null ? Result.ok(orderId) : Result.ok(orderId, notice);
+    }
 
+    private Long executeSeckill(Long voucherId, Long userId, long orderId) {
+        return stringRedisTemplate.execute(
+                SECKILL_SCRIPT,
+                Collections.emptyList(),
+                voucherId.toString(),
+                userId.toString(),
+                String.valueOf(orderId),
+                streamOfUser(userId),
+                String.valueOf(System.currentTimeMillis()),
+                OrderStatusTracker.keyOf(orderId),
+                RedisConstants.ORDER_STATUS_TTL.toString()
+        );
     }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        boolean islock = lock.tryLock();
-        if (!islock) {
-            log.error("不允许重复下单");
-            return;
+    /**
+     * 分片库存下单,返回值与秒杀脚本相同,时间窗口由调用方校验
+     * <p>
+     * 先在全局的已下单集合中占住一人一单,再从用户对应的桶开始逐个扣减,桶为空时尝试后面的桶;
+     * 每次只访问一个桶,各个桶可以分布在集群的不同slot上。所有桶都扣减失败时退回一人一单,
+     * 扣减后写入消息失败时退回库存和一人一单
+     */
+    private long executeShardedSeckill(Long voucherId, Long userId, long orderId, int shards) {
+        String orderKey = RedisConstants.SECKILL_ORDER_KEY + voucherId;
+        Long added = stringRedisTemplate.opsForSet().add(orderKey, userId.toString());
+        if (added == null || added == 0) {
+            return 2;
         }
+        String bucketKey = null;
+        try {
+            //1.从用户对应的桶开始扣减,所有桶都不存在时按库存未加载处理
+            boolean loaded = false;
+            int start = (int) Math.floorMod(userId, (long) shards);
+            for (int i = 0; i < shards && bucketKey == null; i++) {
+                String key = SeckillVoucherServiceImpl.bucketKey(voucherId, (start + i) % shards);
+                Long r = stringRedisTemplate.execute(BUCKET_SCRIPT, Collections.singletonList(key));
+                if (r != null && r == 0) {
+                    bucketKey = key;
+                } else if (r != null && r == 1) {
+                    loaded = true;
+                }
+            }
+            if (bucketKey == null) {
+                stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+                return loaded ? 1 : 5;
+            }
+            //2.先写排队状态再写消息,消费者写入的最终状态不会被覆盖
+            String statusKey = OrderStatusTracker.keyOf(orderId);
+            stringRedisTemplate.opsForHash().put(statusKey, String.valueOf(orderId), OrderStatusTracker.queued(userId));
+            stringRedisTemplate.expire(statusKey, RedisConstants.ORDER_STATUS_TTL, TimeUnit.SECONDS);
+            Map<String, String> message = new HashMap<>(4);
+            message.put("userId", userId.toString());
+            message.put("voucherId", voucherId.toString());
+            message.put("orderId", String.valueOf(orderId));
+            stringRedisTemplate.opsForStream().add(streamOfUser(userId), message);
+            return 0;
+        } catch (RuntimeException e) {
+            try {
+                if (bucketKey != null) {
+                    stringRedisTemplate.opsForValue().increment(bucketKey);
+                }
+                stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+            } catch (Exception ex) {
+                log.error("退回分片库存失败,等待对账修复:{} {}", voucherId, userId, ex);
+            }
+            throw e;
+        }
+    }
 
-
-        proxy.createVoucherOrder(voucherOrder);
-
+    /**
+     * 降级下单:按本节点的库存额度写入本地日志,redis恢复后回放
+     * <p>
+     * 额度按优惠券信息中最近一次已知的库存计算,缓存或数据库中的库存不会少于redis中的剩余库存
+     */
+    private Result seckillWithJournal(Long voucherId, Long userId, long orderId, Integer lastKnownStock) {
+        int r = orderJournal.append(orderId, userId, voucherId, lastKnownStock == null ? 0 : lastKnownStock);
+        if (r == OrderJournal.SOLD_OUT) {
+            return Result.fail("库存不足");
+        }
+        if (r == OrderJournal.DUPLICATE) {
+            return Result.fail("不能重复下单");
+        }
+        if (r != OrderJournal.OK) {
+            return Result.fail("系统繁忙,请稍后再试");
+        }
+        return Result.ok(orderId, "排队中,请稍后查询订单状态");
     }
 
 //    @Override
@@ -210,4 +874,66 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
         return Result.ok(voucherOrder.getId());
     }
+
+    @Override
+    @Transactional
+    public Map<Long, String> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Map<Long, String> failed = new HashMap<>();
+        //1.消息可能重复投递,跳过已经创建的订单
+        Set<Long> existing = listByIds(voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        List<VoucherOrder> toInsert = voucherOrders.stream()
+                .filter(order -> !existing.contains(order.getId()))
+                .collect(Collectors.toList());
+        if (toInsert.isEmpty()) {
+            return failed;
+        }
+        //2.依靠唯一索引保证一人一单,不再需要按用户加锁
+        for (List<VoucherOrder> batch : CollUtil.split(toInsert, SystemConstants.SECKILL_ORDER_BATCH_SIZE)) {
+            getBaseMapper().insertSkipDuplicateBatch(batch);
+        }
+        Set<Long> inserted = listByIds(toInsert.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        //按优惠券id排序扣减库存,多个消费者的事务以相同顺序锁定库存行,不会互相死锁
+        Map<Long, List<VoucherOrder>> byVoucher = new TreeMap<>();
+        for (VoucherOrder order : toInsert) {
+            if (inserted.contains(order.getId())) {
+                byVoucher.computeIfAbsent(order.getVoucherId(), id -> new ArrayList<>()).add(order);
+            } else {
+                log.error("用户重复下单,订单创建失败:{}", order.getId());
+                failed.put(order.getId(), "不能重复下单");
+            }
+        }
+        //3.同一张优惠券的库存合并为一次扣减
+        List<Long> toRemove = new ArrayList<>();
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            List<VoucherOrder> orders = entry.getValue();
+            int count = orders.size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", count)
+                    .update();
+            if (success) {
+                continue;
+            }
+            //4.数据库库存不足整批扣减,逐个扣减直到库存用完,扣减失败的订单在同一事务中删除
+            for (VoucherOrder order : orders) {
+                boolean decreased = seckillVoucherService.update()
+                        .setSql("stock = stock - 1")
+                        .eq("voucher_id", entry.getKey())
+                        .gt("stock", 0)
+                        .update();
+                if (!decreased) {
+                    log.error("库存不足,订单创建失败:{}", order.getId());
+                    failed.put(order.getId(), "库存不足");
+                    toRemove.add(order.getId());
+                }
+            }
+        }
+        if (!toRemove.isEmpty()) {
+            removeByIds(toRemove);
+        }
+        return failed;
+    }
 }
@@ -6,10 +6,11 @@ import com.hmdp.entity.Voucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.IBloomFilter;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisWorker;
+import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -39,6 +40,9 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private IBloomFilter seckillVoucherBloomFilter;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -56,12 +60,40 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
+        //超热门的秒杀券可以拆分库存
+        seckillVoucher.setStockShards(voucher.getStockShards() == null ? 1
+                : Math.min(Math.max(voucher.getStockShards(), 1), SystemConstants.SECKILL_MAX_STOCK_SHARDS));
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
         //保存库存到redis中
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        seckillVoucherService.loadStock(seckillVoucher);
+        seckillVoucherBloomFilter.add(voucher.getId());
+        //保存秒杀时间窗口
+        seckillVoucherService.refreshVoucherMeta(seckillVoucher);
+    }
+
+    @Override
+    @Transactional
+    public Result updateSeckillVoucher(Voucher voucher) {
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucher.getId());
+        if (seckillVoucher == null) {
+            return Result.fail("秒杀券不存在!");
+        }
+        if (voucher.getBeginTime() != null) {
+            seckillVoucher.setBeginTime(voucher.getBeginTime());
+        }
+        if (voucher.getEndTime() != null) {
+            seckillVoucher.setEndTime(voucher.getEndTime());
+        }
+        seckillVoucherService.update()
+                .set("begin_time", seckillVoucher.getBeginTime())
+                .set("end_time", seckillVoucher.getEndTime())
+                .eq("voucher_id", voucher.getId())
+                .update();
+        seckillVoucherService.refreshVoucherMeta(seckillVoucher);
+        return Result.ok();
     }
 
 
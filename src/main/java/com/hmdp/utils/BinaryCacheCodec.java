@@ -0,0 +1,269 @@
+package com.hmdp.utils;
+
+import com.hmdp.service.ICacheCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制编码,只支持字段为基本类型、String、LocalDateTime的扁平实体(如Shop)
+ * <p>
+ * 格式: 标识字节 + 字段结构指纹 + 非空字段位图 + 各非空字段的值(整数使用zigzag变长编码)。
+ * 不是二进制格式的数据交给json编码解析,切换编码时旧缓存依然可读;指纹不一致的数据解码为null,按未命中处理
+ */
+public class BinaryCacheCodec implements ICacheCodec {
+
+    private static final byte MAGIC = 0x00;
+    private static final byte MAGIC_LOGICAL = 0x01;
+
+    private static final Map<Class<?>, Schema> SCHEMAS = new ConcurrentHashMap<>();
+
+    private final ICacheCodec fallback = new JsonCacheCodec();
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeByte(MAGIC);
+            writeObject(out, value);
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (bytes.length == 0 || bytes[0] != MAGIC) {
+            return fallback.decode(bytes, type);
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+            return readObject(in, type);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public byte[] encodeLogical(RedisData redisData) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bos);
+            out.writeByte(MAGIC_LOGICAL);
+            writeValue(out, LocalDateTime.class, redisData.getExpireTime());
+            writeVarLong(out, redisData.getDelta() == null ? 0 : redisData.getDelta());
+            out.writeBoolean(redisData.getData() != null);
+            if (redisData.getData() != null) {
+                writeObject(out, redisData.getData());
+            }
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        if (bytes.length == 0 || bytes[0] != MAGIC_LOGICAL) {
+            return fallback.decodeLogical(bytes, type);
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+            RedisData redisData = new RedisData();
+            redisData.setExpireTime((LocalDateTime) readValue(in, LocalDateTime.class));
+            redisData.setDelta(readVarLong(in));
+            if (in.readBoolean()) {
+                Object data = readObject(in, type);
+                if (data == null) {
+                    return null;
+                }
+                redisData.setData(data);
+            }
+            return redisData;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeObject(DataOutputStream out, Object value) throws IOException {
+        Schema schema = schemaOf(value.getClass());
+        out.writeInt(schema.fingerprint);
+        //1.非空字段位图
+        Object[] values = new Object[schema.fields.length];
+        byte[] presence = new byte[(schema.fields.length + 7) / 8];
+        for (int i = 0; i < schema.fields.length; i++) {
+            values[i] = get(schema.fields[i], value);
+            if (values[i] != null) {
+                presence[i >> 3] |= 1 << (i & 7);
+            }
+        }
+        out.write(presence);
+        //2.非空字段的值
+        for (int i = 0; i < schema.fields.length; i++) {
+            if (values[i] != null) {
+                writeValue(out, schema.fields[i].getType(), values[i]);
+            }
+        }
+    }
+
+    private <T> T readObject(DataInputStream in, Class<T> type) throws IOException {
+        Schema schema = schemaOf(type);
+        //字段结构变化前写入的旧缓存,交给调用方当作未命中重新加载
+        if (in.readInt() != schema.fingerprint) {
+            return null;
+        }
+        byte[] presence = new byte[(schema.fields.length + 7) / 8];
+        in.readFully(presence);
+        T obj;
+        try {
+            obj = type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("无法创建" + type.getName(), e);
+        }
+        for (int i = 0; i < schema.fields.length; i++) {
+            if ((presence[i >> 3] & (1 << (i & 7))) != 0) {
+                Field field = schema.fields[i];
+                set(field, obj, readValue(in, field.getType()));
+            }
+        }
+        return obj;
+    }
+
+    private static void writeValue(DataOutputStream out, Class<?> type, Object value) throws IOException {
+        if (type == Long.class || type == long.class
+                || type == Integer.class || type == int.class
+                || type == Short.class || type == short.class
+                || type == Byte.class || type == byte.class) {
+            writeVarLong(out, ((Number) value).longValue());
+        } else if (type == String.class) {
+            byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+        } else if (type == Double.class || type == double.class) {
+            out.writeDouble((Double) value);
+        } else if (type == Float.class || type == float.class) {
+            out.writeFloat((Float) value);
+        } else if (type == Boolean.class || type == boolean.class) {
+            out.writeBoolean((Boolean) value);
+        } else if (type == LocalDateTime.class) {
+            LocalDateTime time = (LocalDateTime) value;
+            writeVarLong(out, time.toEpochSecond(ZoneOffset.UTC));
+            writeVarLong(out, time.getNano());
+        } else {
+            throw new IllegalArgumentException("不支持的字段类型:" + type.getName());
+        }
+    }
+
+    private static Object readValue(DataInputStream in, Class<?> type) throws IOException {
+        if (type == Long.class || type == long.class) {
+            return readVarLong(in);
+        } else if (type == Integer.class || type == int.class) {
+            return (int) readVarLong(in);
+        } else if (type == Short.class || type == short.class) {
+            return (short) readVarLong(in);
+        } else if (type == Byte.class || type == byte.class) {
+            return (byte) readVarLong(in);
+        } else if (type == String.class) {
+            byte[] bytes = new byte[(int) readVarLong(in)];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        } else if (type == Double.class || type == double.class) {
+            return in.readDouble();
+        } else if (type == Float.class || type == float.class) {
+            return in.readFloat();
+        } else if (type == Boolean.class || type == boolean.class) {
+            return in.readBoolean();
+        } else if (type == LocalDateTime.class) {
+            long second = readVarLong(in);
+            int nano = (int) readVarLong(in);
+            return LocalDateTime.ofEpochSecond(second, nano, ZoneOffset.UTC);
+        }
+        throw new IllegalArgumentException("不支持的字段类型:" + type.getName());
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static Object get(Field field, Object obj) {
+        try {
+            return field.get(obj);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void set(Field field, Object obj, Object value) {
+        try {
+            field.set(obj, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Schema schemaOf(Class<?> type) {
+        return SCHEMAS.computeIfAbsent(type, Schema::new);
+    }
+
+    /**
+     * 实体的字段列表(按字段名排序)及其指纹,字段增删改时指纹变化,旧缓存不会被错误解析
+     */
+    private static class Schema {
+        private final Field[] fields;
+        private final int fingerprint;
+
+        Schema(Class<?> type) {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    list.add(field);
+                }
+            }
+            list.sort(Comparator.comparing(Field::getName));
+            StringBuilder signature = new StringBuilder(type.getName());
+            for (Field field : list) {
+                signature.append(';').append(field.getName()).append(':').append(field.getType().getName());
+            }
+            this.fields = list.toArray(new Field[0]);
+            this.fingerprint = signature.toString().hashCode();
+        }
+    }
+}
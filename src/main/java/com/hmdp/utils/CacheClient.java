@@ -1,114 +1,635 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.hmdp.service.IBloomFilter;
+import com.hmdp.service.ICacheCodec;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.context.annotation.ComponentScan;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 @Component
 @Slf4j
-public class CacheClient {
+public class CacheClient implements MessageListener {
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * 本地一级缓存,命中时不访问redis,也不再做json解析
+     */
+    private final Cache<String, Object> localCache = CacheUtil.newLRUCache(
+            RedisConstants.CACHE_LOCAL_CAPACITY, TimeUnit.SECONDS.toMillis(RedisConstants.CACHE_LOCAL_TTL));
+
+    /**
+     * 按key前缀注册的布隆过滤器,用于拦截不存在的id
+     */
+    private final Map<String, IBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
+    /**
+     * 本jvm内同一个key的缓存重建只由一个线程执行
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    /**
+     * 正在后台刷新的逻辑过期key
+     */
+    private final Map<String, Boolean> refreshing = new ConcurrentHashMap<>();
+
+    /**
+     * 默认使用json编码,可以按key前缀注册其他编码
+     */
+    private final ICacheCodec defaultCodec = new JsonCacheCodec();
+    private final Map<String, ICacheCodec> codecs = new ConcurrentHashMap<>();
+
+    /**
+     * 按key前缀注册的有效期策略,未注册的key只做随机抖动
+     */
+    private final TtlPolicy defaultTtlPolicy = TtlPolicy.jitter(RedisConstants.CACHE_TTL_JITTER);
+    private final Map<String, TtlPolicy> ttlPolicies = new ConcurrentHashMap<>();
+
+    /**
+     * 热点key在本地保留一份短时间的副本,避免同一个key压垮一个redis连接
+     */
+    private final HotKeyDetector hotKeyDetector;
+    private final Cache<String, byte[]> hotReplica = CacheUtil.newLRUCache(
+            RedisConstants.HOT_KEY_REPLICA_CAPACITY, TimeUnit.SECONDS.toMillis(RedisConstants.HOT_KEY_REPLICA_TTL));
+
+    /**
+     * 注册了有效期策略的key,自上次在本节点写入以来的读取次数;没有记录的key(第一次写入或已淘汰)不调整有效期
+     */
+    private final Cache<String, LongAdder> readCounts = CacheUtil.newLRUCache(RedisConstants.CACHE_READ_COUNT_CAPACITY);
+
+    private final CacheMetrics cacheMetrics;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, HotKeyDetector hotKeyDetector, CacheMetrics cacheMetrics) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.hotKeyDetector = hotKeyDetector;
+        this.cacheMetrics = cacheMetrics;
     }
 
+    public void registerBloomFilter(String keyPrefix, IBloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
+    public void registerCodec(String keyPrefix, ICacheCodec codec) {
+        codecs.put(keyPrefix, codec);
+    }
+
+    public void registerTtlPolicy(String keyPrefix, TtlPolicy ttlPolicy) {
+        ttlPolicies.put(keyPrefix, ttlPolicy);
+    }
+
+    /**
+     * 写入缓存,并通知所有节点清除本地一级缓存
+     */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setRaw(key, codecOf(key).encode(value), ttlOf(key, time, unit), TimeUnit.MILLISECONDS);
+        invalidateLocal(key);
+    }
+
+    /**
+     * 删除缓存,并通知所有节点清除本地一级缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        invalidateLocal(key);
+    }
+
+    private void invalidateLocal(String key) {
+        localCache.remove(key);
+        hotReplica.remove(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 收到其他节点的失效通知,清除本地一级缓存
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        localCache.remove(key);
+        hotReplica.remove(key);
     }
 
     public void setWithLogicalExpired(String key, Object value, Long time, TimeUnit unit) {
+        setWithLogicalExpired(key, value, time, unit, 0L);
+    }
+
+    /**
+     * 写入带逻辑过期时间的数据,redis中的实际有效期是逻辑有效期的两倍,过期后仍能返回旧数据并触发重建
+     *
+     * @param delta 本次重建耗时(毫秒),用于提前刷新的概率计算
+     */
+    public void setWithLogicalExpired(String key, Object value, Long time, TimeUnit unit, Long delta) {
         RedisData redisData = new RedisData();
         redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(time));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData), time, unit);
+        //逻辑有效期只做抖动,热点key靠提前刷新保持新鲜,不延长有效期
+        long millis = prefixMatch(ttlPolicies, key, defaultTtlPolicy).jitter(unit.toMillis(time));
+        redisData.setExpireTime(LocalDateTime.now().plusNanos(TimeUnit.MILLISECONDS.toNanos(millis)));
+        redisData.setDelta(delta);
+        setRaw(key, codecOf(key).encodeLogical(redisData), millis * 2, TimeUnit.MILLISECONDS);
+        invalidateLocal(key);
     }
 
 
+    @SuppressWarnings("unchecked")
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbfallback, Long time, TimeUnit unit) {
-        //1.从redis查询商铺缓存
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        //0.先查本地一级缓存
+        Object local = localCache.get(key);
+        if (type.isInstance(local)) {
+            //本地命中也计入访问频率,否则越热的key估算值越低
+            recordRead(key);
+            cacheMetrics.localHit(keyPrefix);
+            return (R) local;
+        }
+        //1.从redis查询商铺缓存
+        byte[] bytes = getRaw(keyPrefix, key);
         //2.判断缓存是否命中
-        if (StrUtil.isNotBlank(json)) {
-            //3.存在,直接返回
-            R r = JSONUtil.toBean(json, type);
-            return r;
+        if (bytes != null && bytes.length > 0) {
+            R r = decode(key, bytes, type);
+            if (r != null) {
+                //3.存在,写入本地缓存后返回
+                cacheMetrics.hit(keyPrefix);
+                localCache.put(key, r);
+                return r;
+            }
+            //旧结构的数据已删除,按未命中处理
+            bytes = null;
         }
         //判断命中的是否是空值
-        if (json != null) {
+        if (bytes != null) {
+            cacheMetrics.nullHit(keyPrefix);
             return null;
         }
-        //4.不存在,根据id查询数据库
-        R r = dbfallback.apply(id);
+        //4.不存在,布隆过滤器判断id一定不存在时直接返回,否则根据id查询数据库
+        cacheMetrics.miss(keyPrefix);
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
+        R r = loadFromDb(keyPrefix, id, dbfallback);
         if (r == null) {
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setNull(key);
             return null;
         }
         this.set(key, r, time, unit);
+        localCache.put(key, r);
         return r;
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
-    private <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbfallback, Long time, TimeUnit unit) {
-        //1.从redis查询商铺缓存
+    /**
+     * 互斥锁解决缓存击穿:本jvm内的并发未命中合并为一次重建,只有这一个线程去竞争分布式锁
+     */
+    @SuppressWarnings("unchecked")
+    public <R, ID> R queryWithMutex(String keyPrefix, String lockKeyPrefix, ID id, Class<R> type, Function<ID, R> dbfallback, Long time, TimeUnit unit) {
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        //2.判断缓存是否命中
-        if (StrUtil.isBlank(json)) {
-            //3.存在,直接返回
-            return null;
+        //0.先查本地一级缓存
+        Object local = localCache.get(key);
+        if (type.isInstance(local)) {
+            //本地命中也计入访问频率,否则越热的key估算值越低
+            recordRead(key);
+            cacheMetrics.localHit(keyPrefix);
+            return (R) local;
         }
-        //4.命中,需要把json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            //5.2 未过期,直接返回店铺信息
-            return r;
-        }
-        //5.1 已过期,需要进行缓存重建
-        //6.缓存重建
-        //6.1获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        boolean islock = tryLock(lockKey);
-        //6.2 判断是否获取成功
-        if (islock) {
-            //double check
-            if (expireTime.isAfter(LocalDateTime.now())) {
-                //5.2 未过期,直接返回店铺信息
+        //1.从redis查询缓存
+        byte[] bytes = getRaw(keyPrefix, key);
+        if (bytes != null && bytes.length > 0) {
+            R r = decode(key, bytes, type);
+            if (r != null) {
+                cacheMetrics.hit(keyPrefix);
+                localCache.put(key, r);
                 return r;
             }
-            //6.3获取成功,开启独立线程,进行缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+            //旧结构的数据已删除,按未命中处理
+            bytes = null;
+        }
+        //判断命中的是否是空值
+        if (bytes != null) {
+            cacheMetrics.nullHit(keyPrefix);
+            return null;
+        }
+        //2.未命中,布隆过滤器判断id一定不存在时直接返回,否则合并本jvm内的并发重建
+        cacheMetrics.miss(keyPrefix);
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
+        return singleFlight.execute(key, () -> rebuildWithMutex(keyPrefix, key, lockKeyPrefix + id, id, type, dbfallback, time, unit));
+    }
+
+    private <R, ID> R rebuildWithMutex(String keyPrefix, String key, String lockKey, ID id, Class<R> type, Function<ID, R> dbfallback, Long time, TimeUnit unit) {
+        while (true) {
+            //1.获取互斥锁
+            if (tryLock(lockKey)) {
                 try {
-                    R r1 = dbfallback.apply(id);
-                    this.setWithLogicalExpired(key, r1, time, unit);
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    //2.double check,其他节点可能已经完成重建
+                    byte[] bytes = getRaw(keyPrefix, key);
+                    if (bytes != null && bytes.length == 0) {
+                        return null;
+                    }
+                    R cached = bytes == null ? null : decode(key, bytes, type);
+                    if (cached != null) {
+                        return cached;
+                    }
+                    //3.根据id查询数据库
+                    R r = loadFromDb(keyPrefix, id, dbfallback);
+                    if (r == null) {
+                        setNull(key);
+                        return null;
+                    }
+                    this.set(key, r, time, unit);
+                    localCache.put(key, r);
+                    return r;
                 } finally {
                     unLock(lockKey);
                 }
-            });
+            }
+            //4.其他节点正在重建,休眠后查看结果
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待缓存重建被中断", e);
+            }
+            byte[] bytes = getRaw(keyPrefix, key);
+            if (bytes != null && bytes.length == 0) {
+                return null;
+            }
+            R cached = bytes == null ? null : decode(key, bytes, type);
+            if (cached != null) {
+                return cached;
+            }
+        }
+    }
+
+    /**
+     * 批量查询:一次MGET,未命中的id一次查库,再用pipeline回写,结果按ids的顺序返回
+     *
+     * @param batchDbFallback 根据未命中的id批量查询数据库,返回id到数据的映射
+     */
+    public <R, ID> List<R> multiGet(String keyPrefix, List<ID> ids, Class<R> type, Function<List<ID>, Map<ID, R>> batchDbFallback, Long time, TimeUnit unit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        ICacheCodec codec = codecOf(keyPrefix);
+        //1.热点key先取本地副本,其余一次MGET查询
+        byte[][] values = new byte[ids.size()][];
+        List<Integer> remote = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            String key = keyPrefix + ids.get(i);
+            recordRead(key);
+            values[i] = hotKeyDetector.isHot(key) ? hotReplica.get(key) : null;
+            if (values[i] == null) {
+                remote.add(i);
+            }
+        }
+        if (!remote.isEmpty()) {
+            byte[][] keys = new byte[remote.size()][];
+            for (int i = 0; i < remote.size(); i++) {
+                keys[i] = rawKey(keyPrefix + ids.get(remote.get(i)));
+            }
+            long begin = System.nanoTime();
+            List<byte[]> remoteValues = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(keys));
+            cacheMetrics.redisLatency(keyPrefix, System.nanoTime() - begin);
+            for (int i = 0; remoteValues != null && i < remote.size(); i++) {
+                int index = remote.get(i);
+                values[index] = remoteValues.get(i);
+                String key = keyPrefix + ids.get(index);
+                if (values[index] != null && hotKeyDetector.isHot(key)) {
+                    hotReplica.put(key, values[index]);
+                }
+            }
+        }
+        //2.解析命中的数据,收集未命中的id
+        Map<ID, R> found = new HashMap<>(ids.size());
+        Set<ID> misses = new LinkedHashSet<>();
+        for (int i = 0; i < ids.size(); i++) {
+            byte[] bytes = values[i];
+            R r = bytes != null && bytes.length > 0 ? decode(keyPrefix + ids.get(i), bytes, type) : null;
+            if (r != null) {
+                cacheMetrics.hit(keyPrefix);
+                found.put(ids.get(i), r);
+            } else if (bytes == null || bytes.length > 0) {
+                cacheMetrics.miss(keyPrefix);
+                misses.add(ids.get(i));
+            } else {
+                cacheMetrics.nullHit(keyPrefix);
+            }
+        }
+        //3.未命中的id一次查库,并回写redis
+        if (!misses.isEmpty()) {
+            long begin = System.nanoTime();
+            Map<ID, R> loaded = batchDbFallback.apply(new ArrayList<>(misses));
+            cacheMetrics.dbFallback(keyPrefix, System.nanoTime() - begin);
+            Map<String, byte[]> toCache = new HashMap<>(misses.size());
+            Set<String> nulls = new LinkedHashSet<>();
+            for (ID id : misses) {
+                R r = loaded == null ? null : loaded.get(id);
+                if (r == null) {
+                    nulls.add(keyPrefix + id);
+                } else {
+                    found.put(id, r);
+                    toCache.put(keyPrefix + id, codec.encode(r));
+                }
+            }
+            setBatch(toCache, time, unit, nulls);
+        }
+        //4.按输入顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.add(r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 批量写入缓存,一次pipeline;失效通知也在一次pipeline中发出
+     */
+    public void multiSet(Map<String, ?> values, Long time, TimeUnit unit) {
+        Map<String, byte[]> encoded = new HashMap<>(values.size());
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            encoded.put(entry.getKey(), codecOf(entry.getKey()).encode(entry.getValue()));
+            localCache.remove(entry.getKey());
+            hotReplica.remove(entry.getKey());
+        }
+        setBatch(encoded, time, unit, Collections.emptySet());
+        byte[] channel = rawKey(RedisConstants.CACHE_INVALIDATE_CHANNEL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : encoded.keySet()) {
+                connection.publish(channel, rawKey(key));
+            }
+            return null;
+        });
+    }
+
+    private void setBatch(Map<String, byte[]> values, Long time, TimeUnit unit, Set<String> nulls) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+                connection.stringCommands().set(rawKey(entry.getKey()), entry.getValue(),
+                        Expiration.milliseconds(ttlOf(entry.getKey(), time, unit)), RedisStringCommands.SetOption.UPSERT);
+            }
+            for (String key : nulls) {
+                connection.stringCommands().set(rawKey(key), new byte[0],
+                        Expiration.milliseconds(nullTtlOf(key)), RedisStringCommands.SetOption.UPSERT);
+            }
+            return null;
+        });
+    }
+
+    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+
+    /**
+     * 逻辑过期解决缓存击穿,并按XFetch算法提前刷新:
+     * 越接近过期、上次重建越慢,越有可能由某个请求提前触发重建,热点key在过期前就已经刷新,不会出现集中的锁竞争
+     *
+     * @param lockKeyPrefix 重建时使用的分布式锁前缀
+     */
+    public <R, ID> R queryWithLogicalExpire(String keyPrefix, String lockKeyPrefix, ID id, Class<R> type, Function<ID, R> dbfallback, Long time, TimeUnit unit) {
+        //1.从redis查询缓存
+        String key = keyPrefix + id;
+        byte[] bytes = getRaw(keyPrefix, key);
+        //旧结构的数据删除后按未命中处理
+        RedisData redisData = bytes == null || bytes.length == 0 ? null : decodeLogical(key, bytes, type);
+        if (bytes != null && bytes.length > 0 && redisData == null) {
+            bytes = null;
+        }
+        //2.命中空值,数据不存在
+        if (bytes != null && bytes.length == 0) {
+            cacheMetrics.nullHit(keyPrefix);
+            return null;
+        }
+        //3.未命中,同步加载一次,本jvm内的并发请求合并
+        if (redisData == null) {
+            cacheMetrics.miss(keyPrefix);
+            if (!mightContain(keyPrefix, id)) {
+                return null;
+            }
+            return singleFlight.execute(key, () -> rebuildWithLogicalExpire(keyPrefix, key, id, dbfallback, time, unit));
+        }
+        cacheMetrics.hit(keyPrefix);
+        //4.命中,取出对象
+        @SuppressWarnings("unchecked")
+        R r = (R) redisData.getData();
+        //5.判断是否需要提前刷新,不需要直接返回
+        if (!shouldRefresh(redisData)) {
+            return r;
+        }
+        //6.需要刷新,本jvm内只提交一次,并获取分布式锁
+        String lockKey = lockKeyPrefix + id;
+        if (refreshing.putIfAbsent(key, Boolean.TRUE) != null) {
+            return r;
+        }
+        if (!tryLock(lockKey)) {
+            refreshing.remove(key);
+            return r;
+        }
+        //7.开启独立线程,进行缓存重建
+        CACHE_REBUILD_EXECUTOR.submit(() -> {
+            try {
+                //double check,其他节点可能刚刚刷新过
+                byte[] latest = readRedis(keyPrefix, key);
+                RedisData latestData = latest == null || latest.length == 0 ? null : codecOf(key).decodeLogical(latest, type);
+                if (latestData != null && !shouldRefresh(latestData)) {
+                    return;
+                }
+                rebuildWithLogicalExpire(keyPrefix, key, id, dbfallback, time, unit);
+            } catch (Exception e) {
+                log.error("缓存重建失败:" + key, e);
+            } finally {
+                unLock(lockKey);
+                refreshing.remove(key);
+            }
+        });
+        //8.返回旧数据
+        return r;
+    }
+
+    private <R, ID> R rebuildWithLogicalExpire(String keyPrefix, String key, ID id, Function<ID, R> dbfallback, Long time, TimeUnit unit) {
+        long begin = System.currentTimeMillis();
+        R r = loadFromDb(keyPrefix, id, dbfallback);
+        if (r == null) {
+            setNull(key);
+            return null;
+        }
+        setWithLogicalExpired(key, r, time, unit, System.currentTimeMillis() - begin);
+        return r;
+    }
+
+    /**
+     * XFetch: now - delta * beta * ln(rand) >= expireTime 时提前刷新,已经过期时一定刷新
+     */
+    private boolean shouldRefresh(RedisData redisData) {
+        long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long delta = redisData.getDelta() == null ? 0 : redisData.getDelta();
+        double random = 1.0 - ThreadLocalRandom.current().nextDouble();
+        return System.currentTimeMillis() - delta * RedisConstants.CACHE_XFETCH_BETA * Math.log(random) >= expireAt;
+    }
+
+    /**
+     * 只在redis未命中时查询布隆过滤器,命中缓存的请求不多一次往返
+     */
+    private <ID> boolean mightContain(String keyPrefix, ID id) {
+        IBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return bloomFilter == null || bloomFilter.mightContain(id);
+    }
+
+    /**
+     * 解码缓存数据,与当前字段结构不一致的旧数据从redis和本地删除后返回null,调用方按未命中重新加载
+     */
+    private <R> R decode(String key, byte[] bytes, Class<R> type) {
+        R r = codecOf(key).decode(bytes, type);
+        if (r == null) {
+            evictStale(key);
         }
-        //6.4 返回商铺信息
         return r;
     }
 
+    private RedisData decodeLogical(String key, byte[] bytes, Class<?> type) {
+        RedisData redisData = codecOf(key).decodeLogical(bytes, type);
+        if (redisData == null) {
+            evictStale(key);
+        }
+        return redisData;
+    }
+
+    private void evictStale(String key) {
+        log.warn("缓存数据与当前结构不一致,删除后重新加载:{}", key);
+        stringRedisTemplate.delete(key);
+        localCache.remove(key);
+        hotReplica.remove(key);
+    }
+
+    private ICacheCodec codecOf(String key) {
+        return prefixMatch(codecs, key, defaultCodec);
+    }
+
+    /**
+     * 按key前缀的策略计算实际有效期(毫秒),访问次数取上次写入以来的读取次数,并开始新一轮统计
+     */
+    private long ttlOf(String key, Long time, TimeUnit unit) {
+        TtlPolicy ttlPolicy = prefixMatch(ttlPolicies, key, null);
+        if (ttlPolicy == null) {
+            return defaultTtlPolicy.ttlMillis(unit.toMillis(time), -1);
+        }
+        LongAdder reads = readCounts.get(key);
+        int accessCount = -1;
+        if (reads == null) {
+            readCounts.put(key, new LongAdder());
+        } else {
+            accessCount = (int) Math.min(Integer.MAX_VALUE, reads.sumThenReset());
+        }
+        return ttlPolicy.ttlMillis(unit.toMillis(time), accessCount);
+    }
+
+    /**
+     * 统计热点key,已开始统计的key同时累计读取次数
+     */
+    private void recordRead(String key) {
+        hotKeyDetector.record(key);
+        LongAdder reads = readCounts.get(key);
+        if (reads != null) {
+            reads.increment();
+        }
+    }
+
+    private long nullTtlOf(String key) {
+        return prefixMatch(ttlPolicies, key, defaultTtlPolicy).jitter(TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL));
+    }
+
+    private void setNull(String key) {
+        setRaw(key, new byte[0], nullTtlOf(key), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 取前缀匹配最长的配置
+     */
+    private static <T> T prefixMatch(Map<String, T> byPrefix, String key, T defaultValue) {
+        T value = defaultValue;
+        int matched = 0;
+        for (Map.Entry<String, T> entry : byPrefix.entrySet()) {
+            String prefix = entry.getKey();
+            if (prefix.length() > matched && key.startsWith(prefix)) {
+                value = entry.getValue();
+                matched = prefix.length();
+            }
+        }
+        return value;
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 查询数据库,并记录查库次数和耗时
+     */
+    private <R, ID> R loadFromDb(String keyPrefix, ID id, Function<ID, R> dbfallback) {
+        long begin = System.nanoTime();
+        try {
+            return dbfallback.apply(id);
+        } finally {
+            cacheMetrics.dbFallback(keyPrefix, System.nanoTime() - begin);
+        }
+    }
+
+    private byte[] getRaw(String keyPrefix, String key) {
+        //1.统计访问频率,热点key优先读本地副本
+        recordRead(key);
+        boolean hot = hotKeyDetector.isHot(key);
+        if (hot) {
+            byte[] replica = hotReplica.get(key);
+            if (replica != null) {
+                return replica;
+            }
+        }
+        //2.查询redis,热点key保存副本
+        byte[] bytes = readRedis(keyPrefix, key);
+        if (hot && bytes != null) {
+            hotReplica.put(key, bytes);
+        }
+        return bytes;
+    }
+
+    private byte[] readRedis(String keyPrefix, String key) {
+        long begin = System.nanoTime();
+        try {
+            return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey(key)));
+        } finally {
+            cacheMetrics.redisLatency(keyPrefix, System.nanoTime() - begin);
+        }
+    }
+
+    private void setRaw(String key, byte[] value, Long time, TimeUnit unit) {
+        hotReplica.remove(key);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.stringCommands().set(
+                rawKey(key), value, Expiration.from(time, unit), RedisStringCommands.SetOption.UPSERT));
+    }
+
     private boolean tryLock(String key) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
@@ -0,0 +1,97 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按key前缀统计缓存命中率、空值命中率、查库次数、重建耗时和redis访问耗时
+ */
+@Component
+public class CacheMetrics {
+
+    private final Map<String, PrefixStats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * 本地缓存命中
+     */
+    public void localHit(String prefix) {
+        of(prefix).localHits.increment();
+    }
+
+    public void hit(String prefix) {
+        of(prefix).hits.increment();
+    }
+
+    /**
+     * 命中缓存的空值
+     */
+    public void nullHit(String prefix) {
+        of(prefix).nullHits.increment();
+    }
+
+    public void miss(String prefix) {
+        of(prefix).misses.increment();
+    }
+
+    /**
+     * 查询数据库重建缓存
+     */
+    public void dbFallback(String prefix, long nanos) {
+        PrefixStats prefixStats = of(prefix);
+        prefixStats.dbFallbacks.increment();
+        prefixStats.rebuild.record(nanos);
+    }
+
+    public void redisLatency(String prefix, long nanos) {
+        of(prefix).redis.record(nanos);
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> map = new TreeMap<>();
+        stats.forEach((prefix, prefixStats) -> map.put(prefix, prefixStats.snapshot()));
+        return map;
+    }
+
+    private PrefixStats of(String prefix) {
+        return stats.computeIfAbsent(prefix, p -> new PrefixStats());
+    }
+
+    private static class PrefixStats {
+        private final LongAdder localHits = new LongAdder();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder nullHits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder dbFallbacks = new LongAdder();
+        private final LatencyHistogram rebuild = new LatencyHistogram();
+        private final LatencyHistogram redis = new LatencyHistogram();
+
+        private Map<String, Object> snapshot() {
+            long localHitCount = localHits.sum();
+            long hitCount = hits.sum();
+            long nullHitCount = nullHits.sum();
+            long missCount = misses.sum();
+            long total = localHitCount + hitCount + nullHitCount + missCount;
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("requests", total);
+            map.put("localHits", localHitCount);
+            map.put("hits", hitCount);
+            map.put("nullHits", nullHitCount);
+            map.put("misses", missCount);
+            map.put("hitRatio", ratio(localHitCount + hitCount, total));
+            map.put("nullHitRatio", ratio(nullHitCount, total));
+            map.put("dbFallbacks", dbFallbacks.sum());
+            map.put("rebuild", rebuild.snapshot());
+            map.put("redis", redis.snapshot());
+            return map;
+        }
+
+        private static double ratio(long part, long total) {
+            return total == 0 ? 0 : (double) part / total;
+        }
+    }
+}
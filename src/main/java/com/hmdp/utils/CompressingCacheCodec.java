@@ -0,0 +1,47 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.ZipUtil;
+import com.hmdp.service.ICacheCodec;
+
+/**
+ * 超过阈值的数据使用gzip压缩,解码时根据gzip头判断是否需要解压
+ */
+public class CompressingCacheCodec implements ICacheCodec {
+
+    private final ICacheCodec delegate;
+    private final int threshold;
+
+    public CompressingCacheCodec(ICacheCodec delegate, int threshold) {
+        this.delegate = delegate;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return compress(delegate.encode(value));
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return delegate.decode(decompress(bytes), type);
+    }
+
+    @Override
+    public byte[] encodeLogical(RedisData redisData) {
+        return compress(delegate.encodeLogical(redisData));
+    }
+
+    @Override
+    public <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        return delegate.decodeLogical(decompress(bytes), type);
+    }
+
+    private byte[] compress(byte[] bytes) {
+        return bytes.length < threshold ? bytes : ZipUtil.gzip(bytes);
+    }
+
+    private static byte[] decompress(byte[] bytes) {
+        boolean gzip = bytes.length > 1 && bytes[0] == (byte) 0x1f && bytes[1] == (byte) 0x8b;
+        return gzip ? ZipUtil.unGzip(bytes) : bytes;
+    }
+}
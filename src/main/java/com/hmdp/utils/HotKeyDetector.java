@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.HotKeyDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 热点key探测:对访问的key抽样,用count-min sketch估算访问频率,超过阈值的key标记为热点
+ * <p>
+ * 计数每个周期减半,估算值约等于最近两个周期的访问量
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 12;
+    private static final int[] SEEDS = {0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F};
+
+    private final AtomicIntegerArray[] sketch = new AtomicIntegerArray[DEPTH];
+
+    /**
+     * 候选key及其估算访问次数,每个周期裁剪为前K个
+     */
+    private final Map<String, Integer> candidates = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> hotKeys = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService decayExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "hot-key-decay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public HotKeyDetector() {
+        for (int i = 0; i < DEPTH; i++) {
+            sketch[i] = new AtomicIntegerArray(WIDTH);
+        }
+        decayExecutor.scheduleAtFixedRate(this::decay,
+                RedisConstants.HOT_KEY_WINDOW, RedisConstants.HOT_KEY_WINDOW, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        decayExecutor.shutdownNow();
+    }
+
+    /**
+     * 记录一次访问,按采样率抽样计数
+     */
+    public void record(String key) {
+        if (ThreadLocalRandom.current().nextInt(RedisConstants.HOT_KEY_SAMPLE_RATE) != 0) {
+            return;
+        }
+        int estimate = Integer.MAX_VALUE;
+        int hash = key.hashCode();
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, sketch[i].incrementAndGet(indexOf(hash, i)));
+        }
+        estimate *= RedisConstants.HOT_KEY_SAMPLE_RATE;
+        candidates.put(key, estimate);
+        if (estimate >= RedisConstants.HOT_KEY_THRESHOLD && hotKeys.putIfAbsent(key, Boolean.TRUE) == null) {
+            log.info("发现热点key:{},估算访问次数:{}", key, estimate);
+        }
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 按估算访问次数倒序返回前K个key
+     */
+    public List<HotKeyDTO> topKeys() {
+        List<HotKeyDTO> list = new ArrayList<>(candidates.size());
+        for (Map.Entry<String, Integer> entry : candidates.entrySet()) {
+            list.add(new HotKeyDTO(entry.getKey(), entry.getValue(), hotKeys.containsKey(entry.getKey())));
+        }
+        list.sort(Comparator.comparing(HotKeyDTO::getCount).reversed());
+        return list.size() > RedisConstants.HOT_KEY_TOP_K ? list.subList(0, RedisConstants.HOT_KEY_TOP_K) : list;
+    }
+
+    /**
+     * 估算key最近的访问次数
+     */
+    public int estimate(String key) {
+        int estimate = Integer.MAX_VALUE;
+        int hash = key.hashCode();
+        for (int i = 0; i < DEPTH; i++) {
+            estimate = Math.min(estimate, sketch[i].get(indexOf(hash, i)));
+        }
+        return estimate * RedisConstants.HOT_KEY_SAMPLE_RATE;
+    }
+
+    private void decay() {
+        try {
+            //1.计数减半
+            for (AtomicIntegerArray row : sketch) {
+                for (int i = 0; i < WIDTH; i++) {
+                    row.set(i, row.get(i) >> 1);
+                }
+            }
+            //2.重新估算候选key,降温的key不再是热点
+            for (String key : candidates.keySet()) {
+                int estimate = estimate(key);
+                if (estimate < RedisConstants.HOT_KEY_THRESHOLD && hotKeys.remove(key) != null) {
+                    log.info("热点key降温:{}", key);
+                }
+                if (estimate == 0) {
+                    candidates.remove(key);
+                } else {
+                    candidates.put(key, estimate);
+                }
+            }
+            //3.用小顶堆只保留前K个候选
+            if (candidates.size() > RedisConstants.HOT_KEY_TOP_K) {
+                PriorityQueue<Map.Entry<String, Integer>> heap = new PriorityQueue<>(Map.Entry.<String, Integer>comparingByValue());
+                for (Map.Entry<String, Integer> entry : candidates.entrySet()) {
+                    heap.offer(entry);
+                    if (heap.size() > RedisConstants.HOT_KEY_TOP_K) {
+                        String coldKey = heap.poll().getKey();
+                        if (!hotKeys.containsKey(coldKey)) {
+                            candidates.remove(coldKey);
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("热点key统计异常", e);
+        }
+    }
+
+    private static int indexOf(int hash, int i) {
+        int h = hash * SEEDS[i];
+        h ^= h >>> 16;
+        return h & (WIDTH - 1);
+    }
+}
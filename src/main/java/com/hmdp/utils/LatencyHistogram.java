@@ -0,0 +1,67 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 固定分桶的耗时直方图,单位微秒,用于估算平均值和分位数
+ */
+public class LatencyHistogram {
+
+    private static final long[] BOUNDS = {
+            50, 100, 250, 500,
+            1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+            100_000, 250_000, 500_000, 1_000_000, Long.MAX_VALUE
+    };
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        int i = 0;
+        while (micros > BOUNDS[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        count.increment();
+        sum.add(micros);
+    }
+
+    public Map<String, Object> snapshot() {
+        long total = count.sum();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("count", total);
+        map.put("meanMicros", total == 0 ? 0 : sum.sum() / total);
+        map.put("p50Micros", percentile(total, 0.50));
+        map.put("p95Micros", percentile(total, 0.95));
+        map.put("p99Micros", percentile(total, 0.99));
+        return map;
+    }
+
+    /**
+     * 返回分位数所在桶的上界
+     */
+    private long percentile(long total, double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i].sum();
+            if (seen >= target) {
+                return BOUNDS[i] == Long.MAX_VALUE ? BOUNDS[i - 1] : BOUNDS[i];
+            }
+        }
+        return BOUNDS[BOUNDS.length - 2];
+    }
+}
@@ -0,0 +1,249 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * redis不可用时的本地订单日志:降级期间接受的订单追加写入内存映射文件,代替stream暂存,
+ * redis恢复后按顺序回放
+ * <p>
+ * 追加只写内存,由后台线程按固定间隔批量刷盘;每张优惠券在本节点只允许接受少量订单,
+ * 不超过固定上限,也不超过最近一次已知库存的一定比例,避免超卖过多
+ * <p>
+ * 文件格式:64字节文件头(前8字节为回放位置),之后是定长记录 orderId|userId|voucherId|checksum
+ */
+@Slf4j
+@Component
+public class OrderJournal {
+
+    public static final int OK = 0;
+    public static final int SOLD_OUT = 1;
+    public static final int DUPLICATE = 2;
+    public static final int FULL = 3;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 32;
+    private static final long MAGIC = 0x4F524445524A4CL;
+
+    @Value("${hmdp.seckill.journal.enabled:false}")
+    private boolean enabled;
+
+    @Value("${hmdp.seckill.journal.path:journal/orders.journal}")
+    private String path;
+
+    @Value("${hmdp.seckill.journal.size:67108864}")
+    private int size;
+
+    @Value("${hmdp.seckill.journal.flush-interval:10}")
+    private long flushInterval;
+
+    @Value("${hmdp.seckill.journal.stock-allowance:50}")
+    private int stockAllowance;
+
+    /**
+     * 本节点最多接受最近一次已知库存的这个比例,各节点合计不应超过1
+     */
+    @Value("${hmdp.seckill.journal.stock-fraction:0.1}")
+    private double stockFraction;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int writePos;
+    private int replayPos;
+    private volatile boolean dirty;
+
+    /**
+     * 未回放的订单中每张优惠券已用的本地库存,以及已下单的用户,key为voucherId:userId
+     */
+    private final Map<Long, AtomicInteger> allowances = new ConcurrentHashMap<>();
+    private final Set<String> users = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService FLUSH_EXECUTOR = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "order-journal-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Path file = Paths.get(path).toAbsolutePath();
+        Files.createDirectories(file.getParent());
+        size = size - (size - HEADER_SIZE) % RECORD_SIZE;
+        channel = new RandomAccessFile(file.toFile(), "rw").getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        //恢复回放位置和写入位置,重建未回放订单的一人一单和本地库存
+        replayPos = (int) Math.max(HEADER_SIZE, buffer.getLong(0));
+        writePos = HEADER_SIZE;
+        while (writePos + RECORD_SIZE <= size) {
+            VoucherOrder order = read(writePos);
+            if (order == null) {
+                break;
+            }
+            if (writePos >= replayPos) {
+                users.add(order.getVoucherId() + ":" + order.getUserId());
+                allowances.computeIfAbsent(order.getVoucherId(), id -> new AtomicInteger()).incrementAndGet();
+            }
+            writePos += RECORD_SIZE;
+        }
+        FLUSH_EXECUTOR.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        log.info("本地订单日志:{},待回放{}条", file, (writePos - replayPos) / RECORD_SIZE);
+    }
+
+    @PreDestroy
+    private void destroy() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        FLUSH_EXECUTOR.shutdownNow();
+        buffer.force();
+        channel.close();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 追加一条订单,只写内存映射区,刷盘由后台线程批量完成
+     *
+     * @param lastKnownStock 最近一次已知的库存,本地可接受的订单数按它的比例计算
+     * @return OK 已接受,SOLD_OUT 本地库存已用完,DUPLICATE 重复下单,FULL 日志已满
+     */
+    public synchronized int append(long orderId, long userId, long voucherId, int lastKnownStock) {
+        String user = voucherId + ":" + userId;
+        if (users.contains(user)) {
+            return DUPLICATE;
+        }
+        AtomicInteger used = allowances.computeIfAbsent(voucherId, id -> new AtomicInteger());
+        if (used.get() >= allowance(lastKnownStock)) {
+            return SOLD_OUT;
+        }
+        if (writePos + RECORD_SIZE > size) {
+            return FULL;
+        }
+        buffer.putLong(writePos, orderId);
+        buffer.putLong(writePos + 8, userId);
+        buffer.putLong(writePos + 16, voucherId);
+        buffer.putLong(writePos + 24, checksum(orderId, userId, voucherId));
+        writePos += RECORD_SIZE;
+        users.add(user);
+        used.incrementAndGet();
+        dirty = true;
+        return OK;
+    }
+
+    /**
+     * 本节点可接受的订单数:固定上限和已知库存比例中较小的一个,库存太少时不接受
+     */
+    private int allowance(int lastKnownStock) {
+        return (int) Math.min(stockAllowance, Math.floor(Math.max(0, lastKnownStock) * stockFraction));
+    }
+
+    /**
+     * 从回放位置开始逐条交给handler,每条成功后推进回放位置;handler抛出异常时停止,下次从这一条重新开始,
+     * 所以handler需要幂等。全部回放完后清空日志
+     *
+     * @return 本次回放的条数
+     */
+    public int replay(Consumer<VoucherOrder> handler) {
+        if (!enabled) {
+            return 0;
+        }
+        int end;
+        int pos;
+        synchronized (this) {
+            end = writePos;
+            pos = replayPos;
+        }
+        int replayed = 0;
+        while (pos < end) {
+            VoucherOrder order = read(pos);
+            if (order != null) {
+                handler.accept(order);
+            }
+            pos += RECORD_SIZE;
+            replayed++;
+            synchronized (this) {
+                replayPos = pos;
+                buffer.putLong(0, pos);
+                dirty = true;
+            }
+        }
+        synchronized (this) {
+            if (replayPos == writePos && writePos > HEADER_SIZE) {
+                reset();
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * 回放完成,清零已用的区域,redis已经接管一人一单和库存
+     */
+    private void reset() {
+        for (int pos = HEADER_SIZE; pos < writePos; pos += 8) {
+            buffer.putLong(pos, 0L);
+        }
+        writePos = HEADER_SIZE;
+        replayPos = HEADER_SIZE;
+        buffer.putLong(0, HEADER_SIZE);
+        buffer.force();
+        dirty = false;
+        users.clear();
+        allowances.clear();
+    }
+
+    private void flush() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        try {
+            buffer.force();
+        } catch (Exception e) {
+            dirty = true;
+            log.error("本地订单日志刷盘失败", e);
+        }
+    }
+
+    private VoucherOrder read(int pos) {
+        long orderId = buffer.getLong(pos);
+        long userId = buffer.getLong(pos + 8);
+        long voucherId = buffer.getLong(pos + 16);
+        if (orderId == 0 || buffer.getLong(pos + 24) != checksum(orderId, userId, voucherId)) {
+            return null;
+        }
+        VoucherOrder order = new VoucherOrder();
+        order.setId(orderId);
+        order.setUserId(userId);
+        order.setVoucherId(voucherId);
+        return order;
+    }
+
+    private static long checksum(long orderId, long userId, long voucherId) {
+        return Long.rotateLeft(orderId, 1) ^ Long.rotateLeft(userId, 7) ^ Long.rotateLeft(voucherId, 13) ^ MAGIC;
+    }
+}
@@ -0,0 +1,143 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.OrderStatusDTO;
+import com.hmdp.dto.Result;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀订单状态:下单脚本写入排队中,消费者落库后写入最终状态并广播,
+ * 等待结果的长轮询请求收到广播后返回
+ * <p>
+ * 按订单id中的时间戳每分钟一个hash,field为订单id,value为 用户id:状态,失败时再带上原因;
+ * 只有下单用户能查到订单状态,其他用户查询时按不存在返回
+ */
+@Component
+public class OrderStatusTracker implements MessageListener {
+
+    public static final String QUEUED = "queued";
+    public static final String CREATED = "created";
+    public static final String FAILED = "failed";
+    public static final String UNKNOWN = "unknown";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 本节点正在等待结果的请求
+     */
+    private final Map<Long, Map<DeferredResult<Result>, Long>> waiters = new ConcurrentHashMap<>();
+
+    public OrderStatusTracker(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 订单状态所在的hash
+     */
+    public static String keyOf(long orderId) {
+        return RedisConstants.ORDER_STATUS_KEY + (orderId >>> RedisWorker.COUNT_BITS) / 60;
+    }
+
+    /**
+     * 获得购买资格、等待落库时写入的状态值
+     */
+    public static String queued(Long userId) {
+        return userId + ":" + QUEUED;
+    }
+
+    /**
+     * 下单成功时写入的状态值
+     */
+    public static String created(Long userId) {
+        return userId + ":" + CREATED;
+    }
+
+    /**
+     * 下单失败时写入的状态值
+     */
+    public static String failed(Long userId, String reason) {
+        return userId + ":" + FAILED + ":" + reason;
+    }
+
+    /**
+     * 查询订单状态,订单不属于userId时按不存在返回
+     */
+    public OrderStatusDTO query(Long orderId, Long userId) {
+        Object value = stringRedisTemplate.opsForHash().get(keyOf(orderId), orderId.toString());
+        return parse(orderId, userId, value == null ? null : value.toString());
+    }
+
+    private static OrderStatusDTO parse(Long orderId, Long userId, String value) {
+        String[] parts = value == null ? null : value.split(":", 3);
+        if (parts == null || parts.length < 2 || !parts[0].equals(String.valueOf(userId))) {
+            return new OrderStatusDTO(orderId, UNKNOWN, null);
+        }
+        return new OrderStatusDTO(orderId, parts[1], parts.length > 2 ? parts[2] : null);
+    }
+
+    /**
+     * 长轮询:订单已经有最终状态时立即返回,否则等到状态变化或超时
+     */
+    public DeferredResult<Result> await(Long orderId, Long userId, long timeoutMillis) {
+        DeferredResult<Result> result = new DeferredResult<>(timeoutMillis);
+        //先登记再查询,避免查询后、登记前的通知丢失
+        Map<DeferredResult<Result>, Long> map = waiters.computeIfAbsent(orderId, id -> new ConcurrentHashMap<>());
+        map.put(result, userId);
+        result.onCompletion(() -> {
+            map.remove(result);
+            waiters.computeIfPresent(orderId, (id, m) -> m.isEmpty() ? null : m);
+        });
+        result.onTimeout(() -> result.setResult(Result.ok(query(orderId, userId))));
+        OrderStatusDTO status = query(orderId, userId);
+        if (!QUEUED.equals(status.getStatus())) {
+            result.setResult(Result.ok(status));
+        }
+        return result;
+    }
+
+    /**
+     * 消费者写入最终状态,并通知所有节点
+     *
+     * @param statuses 订单id到状态,由{@link #created}或{@link #failed}生成
+     */
+    public void finish(Map<Long, String> statuses) {
+        if (statuses.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<Long, String> entry : statuses.entrySet()) {
+                byte[] key = keyOf(entry.getKey()).getBytes(StandardCharsets.UTF_8);
+                connection.hashCommands().hSet(key, entry.getKey().toString().getBytes(StandardCharsets.UTF_8),
+                        entry.getValue().getBytes(StandardCharsets.UTF_8));
+                connection.keyCommands().expire(key, RedisConstants.ORDER_STATUS_TTL);
+            }
+            return null;
+        });
+        stringRedisTemplate.convertAndSend(RedisConstants.ORDER_STATUS_CHANNEL, StrUtil.join(",", statuses.keySet()));
+    }
+
+    /**
+     * 收到状态变化通知,返回本节点上等待这些订单的请求
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        for (String id : new String(message.getBody(), StandardCharsets.UTF_8).split(",")) {
+            Long orderId = Long.valueOf(id);
+            Map<DeferredResult<Result>, Long> map = waiters.get(orderId);
+            if (map == null || map.isEmpty()) {
+                continue;
+            }
+            Object value = stringRedisTemplate.opsForHash().get(keyOf(orderId), id);
+            map.forEach((result, userId) -> result.setResult(Result.ok(parse(orderId, userId, value == null ? null : value.toString()))));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.lang.hash.MurmurHash;
+import com.hmdp.service.IBloomFilter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * 基于redis位图的布隆过滤器
+ */
+@Slf4j
+public class RedisBloomFilter implements IBloomFilter {
+
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+    private static final DefaultRedisScript<Long> CONTAINS_SCRIPT;
+
+    static {
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("bloom_add.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+        CONTAINS_SCRIPT = new DefaultRedisScript<>();
+        CONTAINS_SCRIPT.setLocation(new ClassPathResource("bloom_contains.lua"));
+        CONTAINS_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 所有过滤器共用的后台重建线程
+     */
+    private static final ExecutorService BLOOM_REBUILD_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "bloom-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final String key;
+    private final long numBits;
+    private final int numHashFunctions;
+
+    private final AtomicBoolean building = new AtomicBoolean(false);
+    private volatile Function<Long, List<Long>> pageLoader;
+
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, String key, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = key;
+        //m = -n*ln(p)/(ln2)^2, k = m/n*ln2
+        this.numBits = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.numHashFunctions = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+    }
+
+    @Override
+    public void init(Function<Long, List<Long>> pageLoader) {
+        this.pageLoader = pageLoader;
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+            rebuild();
+        }
+    }
+
+    @Override
+    public void add(Object id) {
+        stringRedisTemplate.execute(ADD_SCRIPT, Collections.singletonList(key), offsets(id));
+    }
+
+    @Override
+    public boolean mightContain(Object id) {
+        Long result = stringRedisTemplate.execute(CONTAINS_SCRIPT, Collections.singletonList(key), offsets(id));
+        if (result == null || result < 0) {
+            //过滤器丢失(如redis被清空),放行并后台重建
+            rebuildAsync();
+            return true;
+        }
+        return result == 1;
+    }
+
+    private void rebuildAsync() {
+        if (pageLoader == null || building.get()) {
+            return;
+        }
+        BLOOM_REBUILD_EXECUTOR.submit(this::rebuild);
+    }
+
+    /**
+     * 写到临时key中,完成后再rename,构建期间查询一律放行
+     * <p>
+     * 多个节点同时发现过滤器丢失时,只有拿到分布式锁的节点重建;临时key带上锁的token,
+     * 即使锁过期也不会清掉其他节点正在写入的位图
+     */
+    private void rebuild() {
+        if (!building.compareAndSet(false, true)) {
+            return;
+        }
+        String lockKey = RedisConstants.LOCK_BLOOM_KEY + key;
+        String token = UUID.randomUUID().toString(true);
+        String tmpKey = key + ":building:" + token;
+        try {
+            Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(
+                    lockKey, token, RedisConstants.LOCK_BLOOM_TTL, TimeUnit.MINUTES);
+            if (!Boolean.TRUE.equals(locked)) {
+                return;
+            }
+            try {
+                //拿到锁之前其他节点可能已经重建完成
+                if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(key))) {
+                    return;
+                }
+                long begin = System.currentTimeMillis();
+                //先占位,保证即使没有数据也能生成key
+                stringRedisTemplate.opsForValue().setBit(tmpKey, numBits - 1, false);
+                long lastId = loadInto(tmpKey, 0L);
+                stringRedisTemplate.rename(tmpKey, key);
+                //补上构建期间新增的数据
+                loadInto(key, lastId);
+                log.info("布隆过滤器{}构建完成,耗时{}ms", key, System.currentTimeMillis() - begin);
+            } finally {
+                stringRedisTemplate.delete(tmpKey);
+                stringRedisTemplate.execute(SimpleRedisLock.UNLOCK_SCRIPT, Collections.singletonList(lockKey), token);
+            }
+        } catch (Exception e) {
+            log.error("布隆过滤器构建失败:" + key, e);
+        } finally {
+            building.set(false);
+        }
+    }
+
+    private long loadInto(String targetKey, long lastId) {
+        byte[] rawKey = targetKey.getBytes(StandardCharsets.UTF_8);
+        while (true) {
+            List<Long> ids = pageLoader.apply(lastId);
+            if (ids == null || ids.isEmpty()) {
+                return lastId;
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long id : ids) {
+                    for (String offset : offsets(id)) {
+                        connection.stringCommands().setBit(rawKey, Long.parseLong(offset), true);
+                    }
+                }
+                return null;
+            });
+            lastId = ids.get(ids.size() - 1);
+        }
+    }
+
+    private String[] offsets(Object id) {
+        long hash64 = MurmurHash.hash64(String.valueOf(id));
+        int hash1 = (int) hash64;
+        int hash2 = (int) (hash64 >>> 32);
+        String[] offsets = new String[numHashFunctions];
+        for (int i = 1; i <= numHashFunctions; i++) {
+            int combinedHash = hash1 + i * hash2;
+            if (combinedHash < 0) {
+                combinedHash = ~combinedHash;
+            }
+            offsets[i - 1] = String.valueOf(combinedHash % numBits);
+        }
+        return offsets;
+    }
+}
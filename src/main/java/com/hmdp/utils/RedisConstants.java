@@ -5,17 +5,79 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 36000L;
+    public static final int LOGIN_USER_LOCAL_CAPACITY = 10000;
+    public static final Long LOGIN_USER_LOCAL_TTL = 30L;
 
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
-    public static final String CACHE_SHOP_TYPE_LIST_KEY = "cache:shopTypeList";
+    /**
+     * 逻辑过期的店铺缓存,格式与CACHE_SHOP_KEY不同,使用单独的key
+     */
+    public static final String CACHE_SHOP_LOGICAL_KEY = "cache:shop:logical:";
+    public static final String CACHE_SHOP_TYPE_LIST_KEY = "cache:shopType:list";
+    public static final String CACHE_SHOP_TYPE_VERSION_KEY = "cache:shopType:version";
+    public static final String CACHE_SHOP_TYPE_CHANNEL = "cache:shopType:changed";
+    public static final Long CACHE_SHOP_TYPE_REFRESH = 60L;
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_SECKILL_VOUCHER_TTL = 30L;
+    public static final String CACHE_SECKILL_VOUCHER_KEY = "cache:seckillVoucher:";
+
+    public static final int CACHE_LOCAL_CAPACITY = 1024;
+    public static final Long CACHE_LOCAL_TTL = 60L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final int CACHE_COMPRESS_THRESHOLD = 1024;
+    public static final double CACHE_XFETCH_BETA = 1.0;
+    public static final double CACHE_TTL_JITTER = 0.1;
+    /**
+     * 冷热按key上次写入以来在本节点的读取次数判断,统计窗口与有效期同一量级
+     */
+    public static final int CACHE_TTL_COLD_COUNT = 2;
+    public static final double CACHE_TTL_COLD_FACTOR = 0.5;
+    public static final int CACHE_TTL_HOT_COUNT = 1000;
+    public static final double CACHE_TTL_HOT_FACTOR = 2.0;
+    public static final int CACHE_READ_COUNT_CAPACITY = 10000;
+
+    public static final long HOT_KEY_WINDOW = 1000L;
+    public static final int HOT_KEY_SAMPLE_RATE = 8;
+    public static final int HOT_KEY_THRESHOLD = 1000;
+    public static final int HOT_KEY_TOP_K = 20;
+    public static final int HOT_KEY_REPLICA_CAPACITY = 256;
+    public static final Long HOT_KEY_REPLICA_TTL = 3L;
+
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    public static final String BLOOM_USER_KEY = "bloom:user";
+    public static final String BLOOM_SECKILL_VOUCHER_KEY = "bloom:seckillVoucher";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_WARMUP_KEY = "lock:warmup";
+    public static final Long LOCK_WARMUP_TTL = 10L;
+    public static final String LOCK_BLOOM_KEY = "lock:bloom:";
+    public static final Long LOCK_BLOOM_TTL = 10L;
+    public static final String LOCK_RECONCILE_KEY = "lock:reconcile";
+    public static final Long LOCK_RECONCILE_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
+    public static final Long SECKILL_ORDER_DLQ_MAX_LEN = 100000L;
+    public static final String SECKILL_ORDER_STATS_KEY = "seckill:order:stats";
+    public static final Long SECKILL_ORDER_STATS_TTL = 10L;
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldOut";
+    public static final String SECKILL_LIMIT_CONF_KEY = "seckill:limit:conf";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_PREHEAT_KEY = "seckill:preheat:";
+    public static final String SECKILL_PREHEAT_CHANNEL = "seckill:preheat";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final Long ORDER_STATUS_TTL = 600L;
+    public static final String ORDER_STATUS_CHANNEL = "order:status";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -1,41 +1,213 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.RedisConnectionFailureException;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import javax.annotation.Resource;
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 全局唯一id:时间戳 << 32 | 当天序列号
+ * <p>
+ * 号段模式下每个节点一次INCRBY租用一段序列号,在本地自增分配,用到水位线时异步预取下一段
+ * <p>
+ * redis不可用时改用本地序列号:最高位置1,再拼接节点编号和本地自增序列,不会和redis分配的序列号重复
+ */
+@Slf4j
 @Component
 public class RedisWorker {
 
-    @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private final StringRedisTemplate stringRedisTemplate;
 
     public static final long BEGIN_TIMESTAMP = 1640995200L;
     public static final int COUNT_BITS = 32;
 
+    /**
+     * 本地序列号:1位标记 | 10位节点编号 | 21位自增序列,同一节点每秒最多分配2^21个不重复的id
+     */
+    private static final long FALLBACK_FLAG = 1L << (COUNT_BITS - 1);
+    private static final int FALLBACK_SEQUENCE_BITS = 21;
+    private static final long FALLBACK_SEQUENCE_MASK = (1L << FALLBACK_SEQUENCE_BITS) - 1;
+    private static final long FALLBACK_WORKER_MASK = (1L << (COUNT_BITS - 1 - FALLBACK_SEQUENCE_BITS)) - 1;
+
+    /**
+     * redis失败后多久内直接使用本地序列号,毫秒
+     */
+    private static final long FALLBACK_BACKOFF = 1000L;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /**
+     * 号段大小,不大于1时每个id都执行一次INCR
+     */
+    @Value("${hmdp.id.segment-size:10000}")
+    private long segmentSize;
+
+    /**
+     * 号段用到这个比例时预取下一段
+     */
+    @Value("${hmdp.id.prefetch-ratio:0.8}")
+    private double prefetchRatio;
+
+    /**
+     * 节点编号,只用于本地序列号,各节点需要配置不同的值
+     */
+    @Value("${hmdp.id.worker-id:0}")
+    private long workerId;
+
+    private final AtomicLong fallbackSequence = new AtomicLong();
+    private volatile long redisDownUntil;
+
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public RedisWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PreDestroy
+    private void destroy() {
+        prefetchExecutor.shutdownNow();
+    }
+
     public long nextId(String keyPrefix) {
-        //1.生成时间戳
+        //1.生成时间戳,日期和时间戳取自同一时刻,跨天时不会和新一天的序列号重复
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timeStamp = nowSecond - BEGIN_TIMESTAMP;
-        //2.生成序列号
-        //2.1 获取当前日期,生成到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        //2.2 自增长
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
-        System.out.println("count:" + count);
+        //2.生成当天的序列号,redis不可用时使用本地序列号
+        LocalDate date = now.toLocalDate();
+        long count;
+        if (System.currentTimeMillis() < redisDownUntil) {
+            count = fallbackCount();
+        } else {
+            try {
+                count = segmentSize > 1
+                        ? buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).nextCount(date)
+                        : increment(keyPrefix, date, 1);
+            } catch (RedisConnectionFailureException | QueryTimeoutException e) {
+                log.warn("redis不可用,使用本地序列号:{}", keyPrefix);
+                redisDownUntil = System.currentTimeMillis() + FALLBACK_BACKOFF;
+                count = fallbackCount();
+            }
+        }
         //3.拼接并返回
         return timeStamp << COUNT_BITS | count;
     }
 
+    private long fallbackCount() {
+        long sequence = fallbackSequence.getAndIncrement() & FALLBACK_SEQUENCE_MASK;
+        return FALLBACK_FLAG | (workerId & FALLBACK_WORKER_MASK) << FALLBACK_SEQUENCE_BITS | sequence;
+    }
+
+    private long increment(String keyPrefix, LocalDate date, long delta) {
+        Long end = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date.format(DATE_FORMATTER), delta);
+        if (end == null) {
+            throw new IllegalStateException("生成序列号失败:" + keyPrefix);
+        }
+        return end;
+    }
+
+    /**
+     * 一段序列号 [start, end]
+     */
+    private static final class Segment {
+        private final LocalDate date;
+        private final AtomicLong cursor;
+        private final long end;
+        private final long watermark;
+
+        private Segment(LocalDate date, long start, long end, long watermark) {
+            this.date = date;
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            this.watermark = watermark;
+        }
+    }
+
+    /**
+     * 一个业务前缀的号段:当前段和预取的下一段
+     */
+    private final class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private CompletableFuture<Segment> next;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long nextCount(LocalDate date) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.date.equals(date)) {
+                    long count = segment.cursor.getAndIncrement();
+                    if (count <= segment.end) {
+                        //每个值只会分配一次,恰好一个线程触发预取
+                        if (count == segment.watermark) {
+                            prefetch(segment);
+                        }
+                        return count;
+                    }
+                }
+                switchSegment(segment, date);
+            }
+        }
+
+        /**
+         * 当前段用完或跨天,切换到预取的段,没有可用的预取段时同步租用
+         */
+        private synchronized void switchSegment(Segment exhausted, LocalDate date) {
+            if (current != exhausted) {
+                return;
+            }
+            Segment segment = null;
+            if (next != null) {
+                try {
+                    segment = next.join();
+                } catch (Exception e) {
+                    log.warn("预取号段失败:{}", keyPrefix, e);
+                }
+                next = null;
+            }
+            if (segment == null || !segment.date.equals(date)) {
+                segment = lease(date);
+            }
+            current = segment;
+        }
+
+        private synchronized void prefetch(Segment segment) {
+            if (next != null || current != segment) {
+                return;
+            }
+            next = CompletableFuture.supplyAsync(() -> lease(segment.date), prefetchExecutor);
+        }
+
+        private Segment lease(LocalDate date) {
+            long end = increment(keyPrefix, date, segmentSize);
+            long start = end - segmentSize + 1;
+            return new Segment(date, start, end, start + (long) (segmentSize * prefetchRatio));
+        }
+    }
+
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2022, 1, 1, 0, 0, 0);
         long second = time.toEpochSecond(ZoneOffset.UTC);
@@ -1,10 +1,15 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.Cache;
+import cn.hutool.cache.CacheUtil;
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.data.redis.RedisConnectionFailureException;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -12,17 +17,30 @@ import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_LOCAL_CAPACITY;
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_LOCAL_TTL;
 import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
 
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+@Slf4j
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
     private StringRedisTemplate stringRedisTemplate;
+    private CacheMetrics cacheMetrics;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
+    /**
+     * 最近在本节点校验过的token,只在redis不可用时使用,让降级下单仍然能识别用户
+     */
+    private final Cache<String, UserDTO> localUsers = CacheUtil.newLRUCache(
+            LOGIN_USER_LOCAL_CAPACITY, TimeUnit.MINUTES.toMillis(LOGIN_USER_LOCAL_TTL));
+
+    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate, CacheMetrics cacheMetrics) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheMetrics = cacheMetrics;
     }
 
     @Override
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //0.tomcat线程会复用,先清除上一个请求留下的用户
+        UserHolder.removeUser();
         //1.获取请求头中的token
         String token = request.getHeader("authorization");
         if (StrUtil.isBlank(token)) {
@@ -30,14 +48,33 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         }
         //2.获取用户
         String key = LOGIN_USER_KEY + token;
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(key);
-        if (userMap == null) {
+        long begin = System.nanoTime();
+        Map<Object, Object> userMap;
+        try {
+            userMap = stringRedisTemplate.opsForHash().entries(key);
+        } catch (RedisConnectionFailureException | QueryTimeoutException e) {
+            //redis不可用,使用本节点最近校验过的用户,没有时按未登录处理
+            UserDTO local = localUsers.get(token, false);
+            if (local != null) {
+                UserHolder.saveUser(local);
+            } else {
+                log.warn("redis不可用,无法校验token");
+            }
+            return true;
+        }
+        cacheMetrics.redisLatency(LOGIN_USER_KEY, System.nanoTime() - begin);
+        //key不存在时返回的是空map
+        if (userMap.isEmpty()) {
+            cacheMetrics.miss(LOGIN_USER_KEY);
+            localUsers.remove(token);
             return true;
         }
+        cacheMetrics.hit(LOGIN_USER_KEY);
         //3. 将hash用户转换成为UserDTO
         UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
         //5.用户存在,保存到ThreadLocal中
         UserHolder.saveUser(userDTO);
+        localUsers.put(token, userDTO);
         //6.刷新token有效期
         stringRedisTemplate.expire(key, LOGIN_USER_TTL, TimeUnit.MINUTES);
         //7.放行
@@ -46,6 +83,14 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
     @Override
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
-        HandlerInterceptor.super.afterCompletion(request, response, handler, ex);
+        UserHolder.removeUser();
+    }
+
+    /**
+     * 异步请求(DeferredResult)的第一个线程不会执行afterCompletion,在这里清除
+     */
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
     }
 }
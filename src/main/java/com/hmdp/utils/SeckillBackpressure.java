@@ -0,0 +1,236 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 订单积压反压:消费者定期把stream积压量和消费速率写入redis,秒杀入口每秒读取一次,
+ * 积压超过阈值时依次降级为排队提示、按比例放行、直接拒绝
+ * <p>
+ * 积压量只统计已投递未确认和尚未投递的消息,不用XLEN:stream按最早的pending消息裁剪,
+ * 一条卡住的消息会让XLEN持续增长,但不代表消费跟不上
+ */
+@Slf4j
+@Component
+public class SeckillBackpressure {
+
+    public enum Mode {
+        /**
+         * 正常放行
+         */
+        NORMAL,
+        /**
+         * 放行,并提示用户排队中
+         */
+        QUEUEING,
+        /**
+         * 只按比例放行一部分请求
+         */
+        THROTTLE,
+        /**
+         * 直接拒绝
+         */
+        REJECT
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.backpressure.queue-lag:2000}")
+    private long queueLag;
+
+    @Value("${hmdp.seckill.backpressure.throttle-lag:10000}")
+    private long throttleLag;
+
+    @Value("${hmdp.seckill.backpressure.throttle-ratio:0.2}")
+    private double throttleRatio;
+
+    @Value("${hmdp.seckill.backpressure.reject-lag:50000}")
+    private long rejectLag;
+
+    private volatile State state = new State(Mode.NORMAL, 0, 0, 0);
+
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public SeckillBackpressure(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 消费者确认消息后累加全局消费数,用于计算消费速率
+     */
+    public void drained(int count) {
+        stringRedisTemplate.opsForHash().increment(RedisConstants.SECKILL_ORDER_STATS_KEY, "acked", count);
+    }
+
+    /**
+     * 超过这个积压量时直接拒绝,统计积压量时探测到这里即可
+     */
+    public long rejectLag() {
+        return rejectLag;
+    }
+
+    /**
+     * 消费者组的积压量 = 已投递未确认的消息 + 尚未投递的消息
+     * <p>
+     * redis 7 的XINFO GROUPS直接返回尚未投递的数量,更早的版本从last-delivered-id向后探测,最多limit条
+     */
+    public static long backlog(StreamOperations<String, Object, Object> ops, Iterable<String> streams, String groupName, int limit) {
+        long lag = 0;
+        for (String stream : streams) {
+            StreamInfo.XInfoGroups groups = ops.groups(stream);
+            for (int i = 0; i < groups.size(); i++) {
+                StreamInfo.XInfoGroup group = groups.get(i);
+                if (!groupName.equals(group.groupName())) {
+                    continue;
+                }
+                Long pending = group.pendingCount();
+                lag += pending == null ? 0 : pending;
+                Map<String, Object> raw = group.getRaw();
+                Object serverLag = raw == null ? null : raw.get("lag");
+                if (serverLag instanceof Number) {
+                    lag += ((Number) serverLag).longValue();
+                    continue;
+                }
+                String lastDeliveredId = group.lastDeliveredId();
+                List<MapRecord<String, Object, Object>> undelivered = ops.range(stream,
+                        Range.of(Range.Bound.inclusive(lastDeliveredId), Range.Bound.unbounded()),
+                        RedisZSetCommands.Limit.limit().count(limit + 1));
+                int count = undelivered == null ? 0 : undelivered.size();
+                if (count > 0 && undelivered.get(0).getId().getValue().equals(lastDeliveredId)) {
+                    count--;
+                }
+                lag += count;
+            }
+        }
+        return lag;
+    }
+
+    public long ackedCount() {
+        Object acked = stringRedisTemplate.opsForHash().get(RedisConstants.SECKILL_ORDER_STATS_KEY, "acked");
+        return acked == null ? 0 : Long.parseLong(acked.toString());
+    }
+
+    /**
+     * 消费者发布积压量和消费速率(条/秒)
+     */
+    public void publish(long lag, double drainRate) {
+        Map<String, String> stats = new HashMap<>(4);
+        stats.put("lag", String.valueOf(lag));
+        stats.put("drainRate", String.format("%.1f", drainRate));
+        stats.put("updatedAt", String.valueOf(System.currentTimeMillis()));
+        stringRedisTemplate.opsForHash().putAll(RedisConstants.SECKILL_ORDER_STATS_KEY, stats);
+    }
+
+    /**
+     * 读取最新的积压量并计算准入模式,数据过期(没有消费者在发布)时按正常处理
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void refresh() {
+        try {
+            List<Object> values = stringRedisTemplate.opsForHash().multiGet(RedisConstants.SECKILL_ORDER_STATS_KEY,
+                    Arrays.asList("lag", "drainRate", "updatedAt"));
+            if (values.get(0) == null || values.get(2) == null) {
+                return;
+            }
+            long lag = Long.parseLong(values.get(0).toString());
+            double drainRate = values.get(1) == null ? 0 : Double.parseDouble(values.get(1).toString());
+            long updatedAt = Long.parseLong(values.get(2).toString());
+            boolean stale = System.currentTimeMillis() - updatedAt > TimeUnit.SECONDS.toMillis(RedisConstants.SECKILL_ORDER_STATS_TTL);
+            Mode mode = stale ? Mode.NORMAL : modeOf(lag);
+            if (mode != state.mode) {
+                log.warn("秒杀准入模式切换:{} -> {},积压{}条,消费速率{}/s", state.mode, mode, lag, drainRate);
+            }
+            state = new State(mode, lag, drainRate, updatedAt);
+        } catch (Exception e) {
+            log.error("读取订单积压失败", e);
+        }
+    }
+
+    private Mode modeOf(long lag) {
+        if (lag >= rejectLag) {
+            return Mode.REJECT;
+        }
+        if (lag >= throttleLag) {
+            return Mode.THROTTLE;
+        }
+        return lag >= queueLag ? Mode.QUEUEING : Mode.NORMAL;
+    }
+
+    public Mode mode() {
+        return state.mode;
+    }
+
+    /**
+     * 按当前模式决定是否放行
+     */
+    public boolean tryAdmit() {
+        Mode mode = state.mode;
+        if (mode == Mode.REJECT) {
+            rejected.increment();
+            return false;
+        }
+        if (mode == Mode.THROTTLE && ThreadLocalRandom.current().nextDouble() >= throttleRatio) {
+            throttled.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 积压时返回给用户的排队提示,正常时为null
+     */
+    public String queueNotice() {
+        State current = state;
+        if (current.mode == Mode.NORMAL) {
+            return null;
+        }
+        if (current.drainRate <= 0) {
+            return "排队中,请稍后查询订单状态";
+        }
+        return "排队中,预计等待" + (long) Math.ceil(current.lag / current.drainRate) + "秒";
+    }
+
+    public Map<String, Object> snapshot() {
+        State current = state;
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("mode", current.mode);
+        map.put("lag", current.lag);
+        map.put("drainRate", current.drainRate);
+        map.put("updatedAt", current.updatedAt);
+        map.put("throttled", throttled.sum());
+        map.put("rejected", rejected.sum());
+        return map;
+    }
+
+    private static final class State {
+        private final Mode mode;
+        private final long lag;
+        private final double drainRate;
+        private final long updatedAt;
+
+        private State(Mode mode, long lag, double drainRate, long updatedAt) {
+            this.mode = mode;
+            this.lag = lag;
+            this.drainRate = drainRate;
+            this.updatedAt = updatedAt;
+        }
+    }
+}
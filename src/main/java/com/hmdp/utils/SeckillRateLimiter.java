@@ -0,0 +1,206 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.SeckillLimitDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀准入限流:redis中每张优惠券一个全局令牌桶,各节点按块领取令牌后在本地分配,
+ * 本地令牌用完时只有一个线程去领取,其他线程短暂等待领取结果;全局桶为空时,在退避时间内直接拒绝,不再访问redis;
+ * redis不可用时在一段时间内直接放行,不再访问redis
+ */
+@Slf4j
+@Component
+public class SeckillRateLimiter {
+
+    private static final DefaultRedisScript<Long> LIMIT_SCRIPT;
+
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("seckill_limit.lua"));
+        LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 没有配置时的默认速率和桶容量
+     */
+    @Value("${hmdp.seckill.limit.rate:5000}")
+    private long defaultRate;
+
+    @Value("${hmdp.seckill.limit.burst:5000}")
+    private long defaultBurst;
+
+    /**
+     * 每次从全局桶领取的令牌数
+     */
+    @Value("${hmdp.seckill.limit.chunk:20}")
+    private long chunk;
+
+    private final Map<Long, LocalBudget> budgets = new ConcurrentHashMap<>();
+
+    /**
+     * 在此之前限流脚本不可用,直接放行
+     */
+    private volatile long redisDownUntil;
+
+    public SeckillRateLimiter(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 尝试放行一个请求
+     */
+    public boolean tryAcquire(Long voucherId) {
+        LocalBudget budget = budgets.computeIfAbsent(voucherId, id -> new LocalBudget());
+        //1.先用本地令牌
+        if (budget.take()) {
+            budget.passed.increment();
+            return true;
+        }
+        //2.全局桶刚刚为空,退避时间内直接拒绝
+        long now = System.currentTimeMillis();
+        if (now < budget.emptyUntil) {
+            budget.rejected.increment();
+            return false;
+        }
+        //3.redis刚刚不可用,直接放行,由秒杀脚本保证库存正确
+        if (now < redisDownUntil) {
+            budget.passed.increment();
+            return true;
+        }
+        //4.只有一个线程去领取令牌,其他线程等待领取结果后再取本地令牌
+        if (!budget.leasing.compareAndSet(false, true)) {
+            budget.awaitLease(SystemConstants.SECKILL_LIMIT_LEASE_WAIT);
+            if (budget.take()) {
+                budget.passed.increment();
+                return true;
+            }
+            budget.rejected.increment();
+            return false;
+        }
+        try {
+            Long granted = stringRedisTemplate.execute(LIMIT_SCRIPT, Collections.emptyList(),
+                    voucherId.toString(), String.valueOf(chunk), String.valueOf(now),
+                    String.valueOf(defaultRate), String.valueOf(defaultBurst));
+            if (granted == null || granted <= 0) {
+                budget.emptyUntil = now + SystemConstants.SECKILL_LIMIT_BACKOFF;
+                budget.rejected.increment();
+                return false;
+            }
+            //自己用一个,其余放入本地
+            budget.permits.addAndGet(granted - 1);
+            budget.passed.increment();
+            return true;
+        } catch (Exception e) {
+            //限流不可用时放行,退避时间内不再访问redis,每次退避只记录一次
+            if (now >= redisDownUntil) {
+                redisDownUntil = now + SystemConstants.SECKILL_LIMIT_DOWN_BACKOFF;
+                log.error("秒杀限流异常,{}ms内直接放行:{}", SystemConstants.SECKILL_LIMIT_DOWN_BACKOFF, voucherId, e);
+            }
+            budget.passed.increment();
+            return true;
+        } finally {
+            budget.leaseDone();
+        }
+    }
+
+    /**
+     * 运行时修改限流配置,对所有节点立即生效
+     */
+    public void updateLimit(SeckillLimitDTO limit) {
+        String key = limit.getVoucherId() == null
+                ? RedisConstants.SECKILL_LIMIT_CONF_KEY
+                : RedisConstants.SECKILL_LIMIT_CONF_KEY + ":" + limit.getVoucherId();
+        Map<String, String> conf = new HashMap<>(2);
+        if (limit.getRate() != null) {
+            conf.put("rate", limit.getRate().toString());
+        }
+        if (limit.getBurst() != null) {
+            conf.put("burst", limit.getBurst().toString());
+        }
+        if (!conf.isEmpty()) {
+            stringRedisTemplate.opsForHash().putAll(key, conf);
+        }
+    }
+
+    /**
+     * 每张优惠券的放行和拒绝次数
+     */
+    public Map<Long, Object> snapshot() {
+        Map<Long, Object> map = new TreeMap<>();
+        budgets.forEach((voucherId, budget) -> {
+            long passed = budget.passed.sum();
+            long rejected = budget.rejected.sum();
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("passed", passed);
+            stats.put("rejected", rejected);
+            stats.put("rejectRatio", passed + rejected == 0 ? 0 : (double) rejected / (passed + rejected));
+            stats.put("localPermits", Math.max(0, budget.permits.get()));
+            map.put(voucherId, stats);
+        });
+        return map;
+    }
+
+    private static class LocalBudget {
+        private final AtomicLong permits = new AtomicLong();
+        private final AtomicBoolean leasing = new AtomicBoolean(false);
+        private final Object leaseLock = new Object();
+        private volatile long emptyUntil;
+        private final LongAdder passed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+
+        private boolean take() {
+            long current;
+            while ((current = permits.get()) > 0) {
+                if (permits.compareAndSet(current, current - 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 等待正在进行的领取结束,最多等待timeoutMillis
+         */
+        private void awaitLease(long timeoutMillis) {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            synchronized (leaseLock) {
+                while (leasing.get()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return;
+                    }
+                    try {
+                        leaseLock.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        }
+
+        private void leaseDone() {
+            synchronized (leaseLock) {
+                leasing.set(false);
+                leaseLock.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 本地售罄标记:秒杀脚本返回库存不足时标记并广播给所有节点,之后的请求不再访问redis和数据库
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final Map<Long, Boolean> soldOut = new ConcurrentHashMap<>();
+
+    public SoldOutRegistry(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.containsKey(voucherId);
+    }
+
+    /**
+     * 标记售罄,只在本节点第一次标记时广播
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.putIfAbsent(voucherId, Boolean.TRUE) == null) {
+            log.info("优惠券已售罄:{}", voucherId);
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+
+    /**
+     * 重新开卖前清除本节点的售罄标记
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+    }
+
+    /**
+     * 收到其他节点的售罄通知
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        soldOut.putIfAbsent(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8)), Boolean.TRUE);
+    }
+}
@@ -5,4 +5,21 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "user_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    public static final int WARMUP_PAGE_SIZE = 1000;
+    public static final int SECKILL_ORDER_BATCH_SIZE = 100;
+    public static final long SECKILL_ORDER_RECOVER_INTERVAL = 10L;
+    public static final long SECKILL_ORDER_CLAIM_IDLE = 30L;
+    public static final long SECKILL_ORDER_RETRY_MAX_BACKOFF = 600L;
+    public static final long SECKILL_ORDER_TRIM_INTERVAL = 1L;
+    public static final long SECKILL_ORDER_SCALE_INTERVAL = 1L;
+    public static final int SECKILL_ORDER_IDLE_CHECKS = 30;
+    public static final long SECKILL_ORDER_FAIL_BACKOFF = 1000L;
+    public static final long SECKILL_ORDER_FAIL_MAX_BACKOFF = 30000L;
+    public static final int SECKILL_MAX_STOCK_SHARDS = 64;
+    public static final long SECKILL_LIMIT_BACKOFF = 20L;
+    public static final long SECKILL_LIMIT_LEASE_WAIT = 20L;
+    public static final long SECKILL_LIMIT_DOWN_BACKOFF = 1000L;
+    public static final long ORDER_STATUS_MAX_WAIT = 30L;
+    public static final int RECONCILE_PAGE_SIZE = 5000;
+    public static final int RECONCILE_SADD_BATCH = 1000;
 }
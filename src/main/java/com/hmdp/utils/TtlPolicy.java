@@ -0,0 +1,75 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 缓存有效期策略:在基础有效期上增加随机抖动,避免大量key在同一时刻过期;
+ * 可选地按上一个有效期内的访问次数调整有效期,访问多的key延长,很少访问的key缩短
+ */
+public class TtlPolicy {
+
+    /**
+     * 抖动比例,有效期在 [1 - jitter, 1 + jitter] 倍之间随机
+     */
+    private final double jitter;
+    /**
+     * 访问次数不超过该值视为冷数据,小于0时不缩短
+     */
+    private final int coldCount;
+    private final double coldFactor;
+    /**
+     * 访问次数不低于该值视为热数据
+     */
+    private final int hotCount;
+    private final double hotFactor;
+
+    private TtlPolicy(double jitter, int coldCount, double coldFactor, int hotCount, double hotFactor) {
+        this.jitter = jitter;
+        this.coldCount = coldCount;
+        this.coldFactor = coldFactor;
+        this.hotCount = hotCount;
+        this.hotFactor = hotFactor;
+    }
+
+    /**
+     * 只增加随机抖动
+     */
+    public static TtlPolicy jitter(double jitter) {
+        return new TtlPolicy(jitter, -1, 1.0, Integer.MAX_VALUE, 1.0);
+    }
+
+    /**
+     * 随机抖动,并按访问次数调整有效期
+     */
+    public static TtlPolicy adaptive(double jitter, int coldCount, double coldFactor, int hotCount, double hotFactor) {
+        return new TtlPolicy(jitter, coldCount, coldFactor, hotCount, hotFactor);
+    }
+
+    /**
+     * 计算实际有效期
+     *
+     * @param millis      基础有效期(毫秒)
+     * @param accessCount 上次写入以来的访问次数,小于0表示没有记录,只做抖动
+     * @return 调整并抖动后的有效期(毫秒)
+     */
+    public long ttlMillis(long millis, int accessCount) {
+        double factor = 1.0;
+        if (accessCount >= hotCount) {
+            factor = hotFactor;
+        } else if (accessCount >= 0 && accessCount <= coldCount) {
+            factor = coldFactor;
+        }
+        return jitter((long) (millis * factor));
+    }
+
+    /**
+     * 只做随机抖动,不按访问次数调整
+     */
+    public long jitter(long millis) {
+        if (jitter <= 0) {
+            return millis;
+        }
+        double random = ThreadLocalRandom.current().nextDouble(-jitter, jitter);
+        return Math.max(1, (long) (millis * (1 + random)));
+    }
+}
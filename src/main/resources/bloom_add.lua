@@ -0,0 +1,12 @@
+---
+--- 布隆过滤器写入,过滤器还未构建时不写,避免产生残缺的位图
+--- KEYS[1] 位图key, ARGV 需要置1的位
+---
+if (redis.call('exists', KEYS[1]) == 0)
+then
+    return 0
+end
+for i = 1, #ARGV do
+    redis.call('setbit', KEYS[1], ARGV[i], 1)
+end
+return 1
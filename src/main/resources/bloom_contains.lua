@@ -0,0 +1,16 @@
+---
+--- 布隆过滤器查询
+--- KEYS[1] 位图key, ARGV 需要检查的位
+--- 返回 -1:过滤器不存在 0:一定不存在 1:可能存在
+---
+if (redis.call('exists', KEYS[1]) == 0)
+then
+    return -1
+end
+for i = 1, #ARGV do
+    if (redis.call('getbit', KEYS[1], ARGV[i]) == 0)
+    then
+        return 0
+    end
+end
+return 1
@@ -6,12 +6,36 @@
 local voucherId = ARGV[1]
 local userId = ARGV[2]
 local orderId = ARGV[3]
+-- 订单消息按userId分区写入的stream
+local stream = ARGV[4]
+-- 当前时间,毫秒
+local now = tonumber(ARGV[5])
+-- 订单状态hash和有效期(秒)
+local statusKey = ARGV[6]
+local statusTtl = ARGV[7]
 
 local stockKey = 'seckill:stock:' .. voucherId
 local orderKey = 'seckill:order:' .. voucherId
 
+-- 判断是否在秒杀时间内,没有时间窗口的旧数据由调用方校验
+local window = redis.call('hmget', 'seckill:voucher:' .. voucherId, 'begin', 'end')
+if (window[1] and now < tonumber(window[1]))
+then
+    return 3
+end
+if (window[2] and now > tonumber(window[2]))
+then
+    return 4
+end
+
+-- 库存key不存在时返回5,由调用方区分未加载和售罄
+local stock = redis.call('get', stockKey)
+if (not stock)
+then
+    return 5
+end
 -- 判断库存是否充足
-if (tonumber(redis.call('get', stockKey)) <= 0)
+if (tonumber(stock) <= 0)
 then
     return 1
 end
@@ -24,5 +48,7 @@ end
 
 redis.call('incrby', stockKey, -1)
 redis.call('sadd', orderKey, userId)
-redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'orderId', orderId)
+redis.call('xadd', stream, '*', 'userId', userId, 'voucherId', voucherId, 'orderId', orderId)
+redis.call('hset', statusKey, orderId, userId .. ':queued')
+redis.call('expire', statusKey, statusTtl)
 return 0
@@ -0,0 +1,16 @@
+---
+--- 分片库存:扣减一个库存桶,只访问一个key,各个桶可以分布在集群的不同slot上
+--- KEYS[1] 库存桶
+--- 返回 0:扣减成功 1:桶内库存不足 5:桶不存在
+---
+local stock = redis.call('get', KEYS[1])
+if (not stock)
+then
+    return 5
+end
+if (tonumber(stock) <= 0)
+then
+    return 1
+end
+redis.call('incrby', KEYS[1], -1)
+return 0
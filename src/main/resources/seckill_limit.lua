@@ -0,0 +1,31 @@
+---
+--- 秒杀限流的全局令牌桶,各节点按块领取令牌
+--- ARGV[1] 优惠券id, ARGV[2] 申请的令牌数, ARGV[3] 当前时间(毫秒), ARGV[4] 默认速率(个/秒), ARGV[5] 默认桶容量
+--- 速率和容量优先使用优惠券的配置,其次是全局配置,最后是参数中的默认值;速率不大于0表示不限流
+--- 返回实际领取到的令牌数
+---
+local voucherId = ARGV[1]
+local requested = tonumber(ARGV[2])
+local now = tonumber(ARGV[3])
+
+local conf = redis.call('hmget', 'seckill:limit:conf:' .. voucherId, 'rate', 'burst')
+local default = redis.call('hmget', 'seckill:limit:conf', 'rate', 'burst')
+local rate = tonumber(conf[1] or default[1] or ARGV[4])
+local burst = tonumber(conf[2] or default[2] or ARGV[5])
+if (rate <= 0)
+then
+    return requested
+end
+
+-- 按时间补充令牌
+local key = 'seckill:limit:' .. voucherId
+local state = redis.call('hmget', key, 'tokens', 'ts')
+local tokens = tonumber(state[1] or burst)
+local ts = tonumber(state[2] or now)
+tokens = math.min(burst, tokens + math.max(0, now - ts) * rate / 1000)
+
+local granted = math.min(math.floor(tokens), requested)
+redis.call('hset', key, 'tokens', tostring(tokens - granted), 'ts', tostring(now))
+-- 桶在补满所需时间后可以丢弃
+redis.call('pexpire', key, math.ceil(burst * 1000 / rate) + 1000)
+return granted
@@ -0,0 +1,77 @@
+---
+--- 秒杀对账:比较并替换redis中的库存和一人一单集合
+--- 参数列表
+local voucherId = ARGV[1]
+-- 按数据库重建的已下单用户集合
+local rebuildKey = ARGV[2]
+local apply = ARGV[3] == '1'
+-- 数据库库存 - 截止位置之前还没有处理完、也不在数据库快照中的订单数
+local expected = tonumber(ARGV[4])
+-- 库存分片数,大于1时库存在 seckill:stock:{id}:{桶} 中
+local shards = tonumber(ARGV[5])
+
+local stockKey = 'seckill:stock:' .. voucherId
+local orderKey = 'seckill:order:' .. voucherId
+
+-- 截止位置(数据库快照建立之后读取)之后新写入的订单,一定不在快照中,按 stream,截止id 成对传入
+local late = 0
+for i = 6, #ARGV - 1, 2 do
+    for _, entry in ipairs(redis.call('xrange', ARGV[i], '(' .. ARGV[i + 1], '+')) do
+        local fields = entry[2]
+        local entryVoucherId, entryUserId
+        for j = 1, #fields, 2 do
+            if (fields[j] == 'voucherId') then
+                entryVoucherId = fields[j + 1]
+            elseif (fields[j] == 'userId') then
+                entryUserId = fields[j + 1]
+            end
+        end
+        if (entryVoucherId == voucherId) then
+            late = late + 1
+            redis.call('sadd', rebuildKey, entryUserId)
+        end
+    end
+end
+expected = math.max(expected - late, 0)
+
+-- 当前redis中的库存,不存在时按0报告;分片时为各个桶之和
+local actual = 0
+if (shards > 1) then
+    for i = 0, shards - 1 do
+        actual = actual + tonumber(redis.call('get', stockKey .. ':' .. i) or '0')
+    end
+else
+    actual = tonumber(redis.call('get', stockKey) or '0')
+end
+
+-- 比较一人一单集合
+local diffKey = rebuildKey .. ':diff'
+local missing = redis.call('sdiffstore', diffKey, rebuildKey, orderKey)
+local extra = redis.call('sdiffstore', diffKey, orderKey, rebuildKey)
+redis.call('del', diffKey)
+local buyers = redis.call('scard', rebuildKey)
+
+if (apply) then
+    if (shards > 1) then
+        -- 平均分到每个桶,余数分给前面的桶
+        for i = 0, shards - 1 do
+            local bucket = math.floor(expected / shards)
+            if (i < expected % shards) then
+                bucket = bucket + 1
+            end
+            redis.call('set', stockKey .. ':' .. i, bucket)
+        end
+    else
+        redis.call('set', stockKey, expected)
+    end
+    if (buyers > 0) then
+        redis.call('rename', rebuildKey, orderKey)
+        -- rename会带上临时key的有效期
+        redis.call('persist', orderKey)
+    else
+        redis.call('del', orderKey)
+    end
+else
+    redis.call('del', rebuildKey)
+end
+return { expected, actual, buyers, missing, extra }
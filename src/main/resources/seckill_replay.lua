@@ -0,0 +1,42 @@
+---
+--- 回放redis不可用期间写入本地日志的订单,不校验时间窗口,按订单id幂等
+--- 参数列表
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+local orderId = ARGV[3]
+-- 订单消息按userId分区写入的stream
+local stream = ARGV[4]
+-- 订单状态hash和有效期(秒)
+local statusKey = ARGV[5]
+local statusTtl = ARGV[6]
+
+local stockKey = 'seckill:stock:' .. voucherId
+local orderKey = 'seckill:order:' .. voucherId
+
+-- 已经回放过
+if (redis.call('hexists', statusKey, orderId) == 1)
+then
+    return 0
+end
+-- 判断用户是否下单
+if (tonumber(redis.call('sismember', orderKey, userId)) == 1)
+then
+    return 2
+end
+-- 库存还没有加载,不能当作库存不足
+local stock = redis.call('get', stockKey)
+if (not stock)
+then
+    return 5
+end
+-- 扣减库存
+if (tonumber(stock) <= 0)
+then
+    return 1
+end
+redis.call('incrby', stockKey, -1)
+redis.call('sadd', orderKey, userId)
+redis.call('xadd', stream, '*', 'userId', userId, 'voucherId', voucherId, 'orderId', orderId)
+redis.call('hset', statusKey, orderId, userId .. ':queued')
+redis.call('expire', statusKey, statusTtl)
+return 0
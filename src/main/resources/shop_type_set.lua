@@ -0,0 +1,18 @@
+---
+--- 写入店铺类型列表,只有版本号更大时才覆盖
+--- KEYS[1] 类型列表hash, ARGV[1] 版本号, ARGV[2] 列表json
+--- 返回 1:写入成功 0:已有相同或更新的版本
+---
+--- hash不存在或缺少数据时按-1处理,版本号从0开始的初始列表也能写入
+local values = redis.call('hmget', KEYS[1], 'version', 'data')
+local current = -1
+if (values[1] and values[2])
+then
+    current = tonumber(values[1])
+end
+if (current >= tonumber(ARGV[1]))
+then
+    return 0
+end
+redis.call('hset', KEYS[1], 'version', ARGV[1], 'data', ARGV[2])
+return 1
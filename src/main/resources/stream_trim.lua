@@ -0,0 +1,32 @@
+-- 按消费者组的确认位置裁剪stream,保留最早的未确认消息以及之后的所有消息
+-- 没有未确认消息时,最后投递的消息之前的都已确认
+local stream = KEYS[1]
+local group = ARGV[1]
+
+if (redis.call('exists', stream) == 0) then
+    return 0
+end
+local minId
+local pending = redis.call('xpending', stream, group)
+if (pending[1] > 0) then
+    minId = pending[2]
+else
+    for _, info in ipairs(redis.call('xinfo', 'groups', stream)) do
+        local name, lastDeliveredId
+        for i = 1, #info, 2 do
+            if (info[i] == 'name') then
+                name = info[i + 1]
+            elseif (info[i] == 'last-delivered-id') then
+                lastDeliveredId = info[i + 1]
+            end
+        end
+        if (name == group) then
+            minId = lastDeliveredId
+        end
+    end
+end
+if (not minId or minId == '0-0') then
+    return 0
+end
+-- 近似裁剪,只删除整个节点,开销更小
+return redis.call('xtrim', stream, 'MINID', '~', minId)
@@ -4,6 +4,7 @@ import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.RedisWorker;
 
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.geo.Point;
@@ -16,6 +17,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -45,6 +48,31 @@ class HmDianPingApplicationTests {
         System.out.println("id:" + id);
     }
 
+    /**
+     * 号段模式的id生成吞吐量,并校验没有重复id
+     */
+    @Test
+    void testIdWorkerThroughput() throws InterruptedException {
+        int threads = 300;
+        int idsPerThread = 1000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet(threads * idsPerThread);
+        CountDownLatch latch = new CountDownLatch(threads);
+        Runnable task = () -> {
+            for (int i = 0; i < idsPerThread; i++) {
+                ids.add(redisWorker.nextId("order"));
+            }
+            latch.countDown();
+        };
+        long begin = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            es.submit(task);
+        }
+        latch.await();
+        long cost = Math.max(1, System.currentTimeMillis() - begin);
+        System.out.println("cost:" + cost + "ms, ids/sec:" + (long) threads * idsPerThread * 1000 / cost);
+        Assertions.assertEquals(threads * idsPerThread, ids.size());
+    }
+
     @Test
     void loadShopData() {
         //查询店铺信息
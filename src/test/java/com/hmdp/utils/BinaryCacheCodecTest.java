@@ -0,0 +1,65 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.User;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+class BinaryCacheCodecTest {
+
+    private final BinaryCacheCodec codec = new BinaryCacheCodec();
+
+    private static Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setArea("大关")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setScore(37)
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+    }
+
+    @Test
+    void roundTrip() {
+        Shop shop = shop();
+        Assertions.assertEquals(shop, codec.decode(codec.encode(shop), Shop.class));
+    }
+
+    @Test
+    void roundTripLogical() {
+        RedisData redisData = new RedisData();
+        redisData.setData(shop());
+        redisData.setExpireTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        redisData.setDelta(12L);
+        RedisData decoded = codec.decodeLogical(codec.encodeLogical(redisData), Shop.class);
+        Assertions.assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+        Assertions.assertEquals(12L, decoded.getDelta());
+        Assertions.assertEquals(shop(), decoded.getData());
+    }
+
+    @Test
+    void readsJson() {
+        Shop shop = shop();
+        Assertions.assertEquals(shop.getName(), codec.decode(new JsonCacheCodec().encode(shop), Shop.class).getName());
+    }
+
+    /**
+     * 字段结构变化前写入的数据按未命中处理,而不是抛异常
+     */
+    @Test
+    void fingerprintMismatchIsMiss() {
+        byte[] bytes = codec.encode(shop());
+        Assertions.assertNull(codec.decode(bytes, User.class));
+
+        RedisData redisData = new RedisData();
+        redisData.setData(shop());
+        redisData.setExpireTime(LocalDateTime.now());
+        Assertions.assertNull(codec.decodeLogical(codec.encodeLogical(redisData), User.class));
+    }
+}
@@ -0,0 +1,95 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.User;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CacheClientTest {
+
+    /**
+     * 同一个key并发未命中时只查一次库
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    void queryWithMutexLoadsOnce() throws Exception {
+        //redis中没有数据,GET返回null;互斥锁总能拿到
+        StringRedisTemplate stringRedisTemplate = Mockito.mock(StringRedisTemplate.class);
+        ValueOperations<String, String> ops = Mockito.mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(ops);
+        when(ops.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class))).thenReturn(true);
+        CacheClient cacheClient = new CacheClient(stringRedisTemplate, new HotKeyDetector(), new CacheMetrics());
+
+        AtomicInteger loads = new AtomicInteger();
+        int threads = 50;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        List<Future<Shop>> futures = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            futures.add(es.submit(() -> {
+                start.await();
+                return cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, RedisConstants.LOCK_SHOP_KEY, 1L, Shop.class, id -> {
+                    loads.incrementAndGet();
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new Shop().setId(id).setName("103茶餐厅");
+                }, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            }));
+        }
+        start.countDown();
+        for (Future<Shop> future : futures) {
+            Assertions.assertEquals(1L, future.get(5, TimeUnit.SECONDS).getId());
+        }
+        es.shutdown();
+        Assertions.assertEquals(1, loads.get());
+    }
+
+    /**
+     * 字段结构变化前写入的缓存按未命中处理:删除旧数据并重新查库
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    void staleBinaryCacheIsReloaded() {
+        //第一次GET返回其他结构的数据,之后redis中没有数据
+        byte[] stale = new BinaryCacheCodec().encode(new User().setId(1L).setNickName("user"));
+        StringRedisTemplate stringRedisTemplate = Mockito.mock(StringRedisTemplate.class);
+        ValueOperations<String, String> ops = Mockito.mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(ops);
+        when(ops.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class))).thenReturn(true);
+        when(stringRedisTemplate.execute(any(RedisCallback.class))).thenReturn(stale).thenReturn(null);
+        CacheClient cacheClient = new CacheClient(stringRedisTemplate, new HotKeyDetector(), new CacheMetrics());
+        cacheClient.registerCodec(RedisConstants.CACHE_SHOP_KEY, new BinaryCacheCodec());
+
+        AtomicInteger loads = new AtomicInteger();
+        Shop shop = cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, RedisConstants.LOCK_SHOP_KEY, 1L, Shop.class, id -> {
+            loads.incrementAndGet();
+            return new Shop().setId(id).setName("103茶餐厅");
+        }, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+
+        Assertions.assertEquals("103茶餐厅", shop.getName());
+        Assertions.assertEquals(1, loads.get());
+        verify(stringRedisTemplate).delete(RedisConstants.CACHE_SHOP_KEY + 1L);
+    }
+}
@@ -0,0 +1,168 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+class OrderJournalTest {
+
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 32;
+    private static final long VOUCHER_ID = 10L;
+
+    @TempDir
+    Path dir;
+
+    private OrderJournal opened;
+
+    @AfterEach
+    void tearDown() {
+        close();
+    }
+
+    private Path file() {
+        return dir.resolve("orders.journal");
+    }
+
+    private OrderJournal open(int stockAllowance, double stockFraction) {
+        close();
+        opened = new OrderJournal();
+        ReflectionTestUtils.setField(opened, "enabled", true);
+        ReflectionTestUtils.setField(opened, "path", file().toString());
+        ReflectionTestUtils.setField(opened, "size", HEADER_SIZE + RECORD_SIZE * 16);
+        ReflectionTestUtils.setField(opened, "flushInterval", 1000L);
+        ReflectionTestUtils.setField(opened, "stockAllowance", stockAllowance);
+        ReflectionTestUtils.setField(opened, "stockFraction", stockFraction);
+        ReflectionTestUtils.invokeMethod(opened, "init");
+        return opened;
+    }
+
+    /**
+     * 模拟进程退出:刷盘并关闭文件
+     */
+    private void close() {
+        if (opened != null) {
+            ReflectionTestUtils.invokeMethod(opened, "destroy");
+            opened = null;
+        }
+    }
+
+    private static List<Long> replayOrderIds(OrderJournal journal) {
+        List<Long> orderIds = new ArrayList<>();
+        journal.replay(order -> orderIds.add(order.getId()));
+        return orderIds;
+    }
+
+    @Test
+    void appendThenReplayInOrder() {
+        OrderJournal journal = open(10, 1.0);
+        Assertions.assertEquals(OrderJournal.OK, journal.append(1L, 101L, VOUCHER_ID, 100));
+        Assertions.assertEquals(OrderJournal.OK, journal.append(2L, 102L, VOUCHER_ID, 100));
+        Assertions.assertEquals(OrderJournal.DUPLICATE, journal.append(3L, 101L, VOUCHER_ID, 100));
+
+        List<VoucherOrder> replayed = new ArrayList<>();
+        Assertions.assertEquals(2, journal.replay(replayed::add));
+        Assertions.assertEquals(2, replayed.size());
+        Assertions.assertEquals(1L, replayed.get(0).getId());
+        Assertions.assertEquals(101L, replayed.get(0).getUserId());
+        Assertions.assertEquals(VOUCHER_ID, replayed.get(0).getVoucherId());
+        Assertions.assertEquals(2L, replayed.get(1).getId());
+    }
+
+    @Test
+    void allowanceIsCappedByLastKnownStock() {
+        OrderJournal journal = open(10, 0.2);
+        //库存12,按比例最多接受2单
+        Assertions.assertEquals(OrderJournal.OK, journal.append(1L, 101L, VOUCHER_ID, 12));
+        Assertions.assertEquals(OrderJournal.OK, journal.append(2L, 102L, VOUCHER_ID, 12));
+        Assertions.assertEquals(OrderJournal.SOLD_OUT, journal.append(3L, 103L, VOUCHER_ID, 12));
+        //库存太少时不接受降级订单
+        Assertions.assertEquals(OrderJournal.SOLD_OUT, journal.append(4L, 101L, VOUCHER_ID + 1, 4));
+        //库存很多时不超过固定上限
+        for (long userId = 1; userId <= 10; userId++) {
+            Assertions.assertEquals(OrderJournal.OK, journal.append(100L + userId, userId, VOUCHER_ID + 2, 1000));
+        }
+        Assertions.assertEquals(OrderJournal.SOLD_OUT, journal.append(200L, 11L, VOUCHER_ID + 2, 1000));
+    }
+
+    @Test
+    void restartRebuildsUsersAndAllowances() {
+        OrderJournal journal = open(2, 1.0);
+        Assertions.assertEquals(OrderJournal.OK, journal.append(1L, 101L, VOUCHER_ID, 100));
+        Assertions.assertEquals(OrderJournal.OK, journal.append(2L, 102L, VOUCHER_ID, 100));
+
+        journal = open(2, 1.0);
+        Assertions.assertEquals(OrderJournal.DUPLICATE, journal.append(3L, 101L, VOUCHER_ID, 100));
+        Assertions.assertEquals(OrderJournal.SOLD_OUT, journal.append(3L, 103L, VOUCHER_ID, 100));
+        Assertions.assertEquals(Arrays.asList(1L, 2L), replayOrderIds(journal));
+    }
+
+    @Test
+    void replayResumesFromFailedRecord() {
+        OrderJournal journal = open(10, 1.0);
+        journal.append(1L, 101L, VOUCHER_ID, 100);
+        journal.append(2L, 102L, VOUCHER_ID, 100);
+        journal.append(3L, 103L, VOUCHER_ID, 100);
+
+        List<Long> handled = new ArrayList<>();
+        Assertions.assertThrows(IllegalStateException.class, () -> journal.replay(order -> {
+            if (order.getId() == 2L) {
+                throw new IllegalStateException("redis不可用");
+            }
+            handled.add(order.getId());
+        }));
+        Assertions.assertEquals(Arrays.asList(1L), handled);
+
+        //重启后从失败的那一条继续,已回放的订单不再计入一人一单
+        OrderJournal reopened = open(10, 1.0);
+        Assertions.assertEquals(OrderJournal.OK, reopened.append(4L, 101L, VOUCHER_ID, 100));
+        Assertions.assertEquals(Arrays.asList(2L, 3L, 4L), replayOrderIds(reopened));
+    }
+
+    @Test
+    void tornFinalRecordIsDiscarded() throws Exception {
+        OrderJournal journal = open(10, 1.0);
+        journal.append(1L, 101L, VOUCHER_ID, 100);
+        journal.append(2L, 102L, VOUCHER_ID, 100);
+        close();
+        //第二条记录只写了一半,校验和还没有写入
+        try (RandomAccessFile raf = new RandomAccessFile(file().toFile(), "rw")) {
+            raf.seek(HEADER_SIZE + RECORD_SIZE + 24);
+            raf.writeLong(0L);
+        }
+
+        OrderJournal reopened = open(10, 1.0);
+        //残缺记录的用户可以重新下单,新记录覆盖残缺的位置
+        Assertions.assertEquals(OrderJournal.OK, reopened.append(3L, 102L, VOUCHER_ID, 100));
+        Assertions.assertEquals(Arrays.asList(1L, 3L), replayOrderIds(reopened));
+    }
+
+    @Test
+    void resetAfterFullReplay() throws Exception {
+        OrderJournal journal = open(1, 1.0);
+        journal.append(1L, 101L, VOUCHER_ID, 100);
+        Assertions.assertEquals(Arrays.asList(1L), replayOrderIds(journal));
+
+        //回放完清空日志,额度和一人一单交还给redis
+        Assertions.assertEquals(OrderJournal.OK, journal.append(2L, 101L, VOUCHER_ID, 100));
+        Assertions.assertEquals(Arrays.asList(2L), replayOrderIds(journal));
+        close();
+        try (RandomAccessFile raf = new RandomAccessFile(file().toFile(), "r")) {
+            Assertions.assertEquals(HEADER_SIZE, raf.readLong());
+            raf.seek(HEADER_SIZE);
+            Assertions.assertEquals(0L, raf.readLong());
+        }
+
+        OrderJournal reopened = open(1, 1.0);
+        Assertions.assertEquals(0, reopened.replay(order -> Assertions.fail("日志已清空")));
+    }
+}
@@ -0,0 +1,98 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+class SeckillBackpressureTest {
+
+    private static final String STREAM = RedisConstants.SECKILL_ORDER_STREAM;
+
+    /**
+     * 消费者组的状态:pending条数、last-delivered-id之后还有多少条未投递
+     */
+    @SuppressWarnings("unchecked")
+    private static StreamOperations<String, Object, Object> streamOf(long pending, int undelivered) {
+        StreamOperations<String, Object, Object> ops = Mockito.mock(StreamOperations.class);
+        StreamInfo.XInfoGroup group = Mockito.mock(StreamInfo.XInfoGroup.class);
+        when(group.groupName()).thenReturn(RedisConstants.SECKILL_ORDER_GROUP);
+        when(group.pendingCount()).thenReturn(pending);
+        when(group.lastDeliveredId()).thenReturn("100-0");
+        when(group.getRaw()).thenReturn(Collections.emptyMap());
+        StreamInfo.XInfoGroups groups = Mockito.mock(StreamInfo.XInfoGroups.class);
+        when(groups.size()).thenReturn(1);
+        when(groups.get(0)).thenReturn(group);
+        when(ops.groups(STREAM)).thenReturn(groups);
+        //range从last-delivered-id开始(包含),第一条是已投递的那条
+        MapRecord<String, Object, Object>[] records = new MapRecord[undelivered + 1];
+        for (int i = 0; i <= undelivered; i++) {
+            records[i] = Mockito.mock(MapRecord.class);
+            when(records[i].getId()).thenReturn(RecordId.of(100 + i, 0));
+        }
+        when(ops.range(eq(STREAM), any(), any())).thenReturn(Arrays.asList(records));
+        //XLEN很大:卡住的消息之后的记录都无法裁剪
+        when(ops.size(STREAM)).thenReturn(100_000L);
+        return ops;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SeckillBackpressure backpressureWithLag(long lag) {
+        StringRedisTemplate stringRedisTemplate = Mockito.mock(StringRedisTemplate.class);
+        HashOperations<String, Object, Object> hashOps = Mockito.mock(HashOperations.class);
+        when(stringRedisTemplate.<Object, Object>opsForHash()).thenReturn(hashOps);
+        List<Object> stats = Arrays.asList(String.valueOf(lag), "100.0", String.valueOf(System.currentTimeMillis()));
+        when(hashOps.multiGet(anyString(), anyCollection())).thenReturn(stats);
+        SeckillBackpressure backpressure = new SeckillBackpressure(stringRedisTemplate);
+        ReflectionTestUtils.setField(backpressure, "queueLag", 2000L);
+        ReflectionTestUtils.setField(backpressure, "throttleLag", 10000L);
+        ReflectionTestUtils.setField(backpressure, "throttleRatio", 0.2);
+        ReflectionTestUtils.setField(backpressure, "rejectLag", 50000L);
+        backpressure.refresh();
+        return backpressure;
+    }
+
+    /**
+     * 一条反复失败的消息只算一条积压,不会因为stream无法裁剪而拒绝所有秒杀请求
+     */
+    @Test
+    void stuckMessageDoesNotReject() {
+        StreamOperations<String, Object, Object> ops = streamOf(1, 0);
+        long lag = SeckillBackpressure.backlog(ops, Collections.singletonList(STREAM), RedisConstants.SECKILL_ORDER_GROUP, 50000);
+        Assertions.assertEquals(1, lag);
+
+        SeckillBackpressure backpressure = backpressureWithLag(lag);
+        Assertions.assertEquals(SeckillBackpressure.Mode.NORMAL, backpressure.mode());
+        Assertions.assertTrue(backpressure.tryAdmit());
+    }
+
+    @Test
+    void backlogCountsPendingAndUndelivered() {
+        StreamOperations<String, Object, Object> ops = streamOf(30, 70);
+        Assertions.assertEquals(100, SeckillBackpressure.backlog(ops, Collections.singletonList(STREAM), RedisConstants.SECKILL_ORDER_GROUP, 50000));
+    }
+
+    @Test
+    void modeFollowsLag() {
+        Assertions.assertEquals(SeckillBackpressure.Mode.QUEUEING, backpressureWithLag(2000).mode());
+        Assertions.assertEquals(SeckillBackpressure.Mode.THROTTLE, backpressureWithLag(10000).mode());
+        Assertions.assertEquals(SeckillBackpressure.Mode.REJECT, backpressureWithLag(50000).mode());
+        Assertions.assertFalse(backpressureWithLag(50000).tryAdmit());
+    }
+}
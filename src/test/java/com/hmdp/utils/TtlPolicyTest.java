@@ -0,0 +1,77 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+class TtlPolicyTest {
+
+    private static final long BASE = TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_SHOP_TTL);
+
+    private final TtlPolicy shopPolicy = TtlPolicy.adaptive(RedisConstants.CACHE_TTL_JITTER,
+            RedisConstants.CACHE_TTL_COLD_COUNT, RedisConstants.CACHE_TTL_COLD_FACTOR,
+            RedisConstants.CACHE_TTL_HOT_COUNT, RedisConstants.CACHE_TTL_HOT_FACTOR);
+
+    private static void assertAround(double expected, long actual) {
+        Assertions.assertTrue(actual >= expected * (1 - RedisConstants.CACHE_TTL_JITTER)
+                && actual <= expected * (1 + RedisConstants.CACHE_TTL_JITTER), "ttl " + actual + " not around " + expected);
+    }
+
+    @Test
+    void jitterStaysInRange() {
+        TtlPolicy policy = TtlPolicy.jitter(RedisConstants.CACHE_TTL_JITTER);
+        for (int i = 0; i < 1000; i++) {
+            assertAround(BASE, policy.ttlMillis(BASE, 0));
+        }
+    }
+
+    /**
+     * 第一次写入的key没有访问记录,不能因此缩短有效期
+     */
+    @Test
+    void unknownCountKeepsBaseTtl() {
+        for (int i = 0; i < 1000; i++) {
+            assertAround(BASE, shopPolicy.ttlMillis(BASE, -1));
+        }
+    }
+
+    @Test
+    void hotKeyIsExtended() {
+        assertAround(BASE * RedisConstants.CACHE_TTL_HOT_FACTOR, shopPolicy.ttlMillis(BASE, RedisConstants.CACHE_TTL_HOT_COUNT));
+    }
+
+    @Test
+    void coldKeyIsShortened() {
+        assertAround(BASE * RedisConstants.CACHE_TTL_COLD_FACTOR, shopPolicy.ttlMillis(BASE, 0));
+        assertAround(BASE * RedisConstants.CACHE_TTL_COLD_FACTOR, shopPolicy.ttlMillis(BASE, RedisConstants.CACHE_TTL_COLD_COUNT));
+        TtlPolicy policy = TtlPolicy.adaptive(0, 8, 0.5, 64, 2.0);
+        Assertions.assertEquals(BASE / 2, policy.ttlMillis(BASE, 8));
+        Assertions.assertEquals(BASE, policy.ttlMillis(BASE, 16));
+    }
+
+    private static long ttlOf(CacheClient cacheClient, String key) {
+        return ReflectionTestUtils.invokeMethod(cacheClient, "ttlOf", key, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 按上次写入以来的读取次数计算有效期,每次写入重新开始统计
+     */
+    @Test
+    void readsSinceLastWriteDriveTtl() {
+        CacheClient cacheClient = new CacheClient(null, new HotKeyDetector(), new CacheMetrics());
+        cacheClient.registerTtlPolicy(RedisConstants.CACHE_SHOP_KEY, shopPolicy);
+        String key = RedisConstants.CACHE_SHOP_KEY + 1;
+        //第一次写入之前的读取不计数
+        ReflectionTestUtils.invokeMethod(cacheClient, "recordRead", key);
+        assertAround(BASE, ttlOf(cacheClient, key));
+        //上一个有效期内没有读取,视为冷数据
+        assertAround(BASE * RedisConstants.CACHE_TTL_COLD_FACTOR, ttlOf(cacheClient, key));
+        for (int i = 0; i < RedisConstants.CACHE_TTL_HOT_COUNT; i++) {
+            ReflectionTestUtils.invokeMethod(cacheClient, "recordRead", key);
+        }
+        assertAround(BASE * RedisConstants.CACHE_TTL_HOT_FACTOR, ttlOf(cacheClient, key));
+        assertAround(BASE * RedisConstants.CACHE_TTL_COLD_FACTOR, ttlOf(cacheClient, key));
+    }
+}